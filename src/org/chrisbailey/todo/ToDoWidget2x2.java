@@ -22,8 +22,11 @@ import java.util.LinkedList;
 import org.chrisbailey.todo.activities.ToDoActivity;
 import org.chrisbailey.todo.db.ToDoDatabase;
 import org.chrisbailey.todo.utils.Note;
+import org.chrisbailey.todo.utils.NoteCache;
 import org.chrisbailey.todo.utils.PreferenceManager;
-import org.chrisbailey.todo.utils.Note.Status;
+import org.chrisbailey.todo.utils.ScrollState;
+import org.chrisbailey.todo.utils.ThemeCache;
+import org.chrisbailey.todo.utils.WidgetRenderer;
 
 import android.app.PendingIntent;
 import android.appwidget.AppWidgetManager;
@@ -31,21 +34,27 @@ import android.appwidget.AppWidgetProvider;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Bundle;
-import android.text.Html;
+import android.os.SystemClock;
 import android.util.Log;
-import android.view.View;
 import android.widget.RemoteViews;
 
 public class ToDoWidget2x2 extends AppWidgetProvider
 {
-    public static final int MAX_NOTES = 20;
+    public static final int MAX_NOTES = WidgetRenderer.MAX_ROWS;
     public static String LOG_TAG = "ToDoWidgetProvider";
     
     public static final String BUTTON_UP = "org.chrisbailey.todo.btn.up";
     public static final String BUTTON_DOWN = "org.chrisbailey.todo.btn.down";
+    public static final String BUTTON_PAGE_UP = "org.chrisbailey.todo.btn.page_up";
+    public static final String BUTTON_PAGE_DOWN = "org.chrisbailey.todo.btn.page_down";
+    public static final String BUTTON_TOP = "org.chrisbailey.todo.btn.top";
+    public static final String BUTTON_BOTTOM = "org.chrisbailey.todo.btn.bottom";
     public static final String TOGGLE = "org.chrisbailey.todo.toggle_";
     
-    public static enum MOVE { UP, DOWN, NONE };
+    // number of rows moved by a page scroll when the widget's size is unknown
+    public static final int PAGE_SIZE = 5;
+    
+    public static enum MOVE { UP, DOWN, PAGE_UP, PAGE_DOWN, TOP, BOTTOM, NONE };
     
     @Override
     public void onUpdate(Context context, AppWidgetManager appWidgetManager, int[] appWidgetIds) 
@@ -54,8 +63,10 @@ public class ToDoWidget2x2 extends AppWidgetProvider
         
         if (ToDoActivity.debug) Log.i(LOG_TAG, "updating " + N + " widgets");
 
+        WidgetSizes.Size size = WidgetSizes.get(context, getClass());
         for (int i=0; i<N; i++) {
             int appWidgetId = appWidgetIds[i];
+            WidgetSizes.put(appWidgetId, size);
             updateAppWidget(context, appWidgetManager, appWidgetId, MOVE.NONE);
         }
         
@@ -63,21 +74,38 @@ public class ToDoWidget2x2 extends AppWidgetProvider
     }
 
     @Override
-    public void onDeleted(Context context, int[] appWidgetIds)
+    public void onDeleted(Context context, final int[] appWidgetIds)
     {
         int N = appWidgetIds.length;
         
         if (ToDoActivity.debug) Log.i(LOG_TAG, "deleting " + N + " widgets");
 
         ToDoDatabase db = new ToDoDatabase(context.getApplicationContext());
-        for (int i=0; i<N; i++) {
-            int appWidgetId = appWidgetIds[i];
-            db.deleteTitle(appWidgetId);
-            db.deleteAllNotes(appWidgetId);
-        }
+        db.batch(new ToDoDatabase.Batch()
+        {
+            public void run(ToDoDatabase db)
+            {
+                for (int appWidgetId : appWidgetIds)
+                {
+                    db.deleteTitle(appWidgetId);
+                    db.deleteAllNotes(appWidgetId);
+                    db.deleteOffset(appWidgetId);
+                    db.deleteJournal(appWidgetId);
+                    db.deleteTheme(appWidgetId);
+                }
+            }
+        });
         db.close();
         db = null;
         
+        for (int appWidgetId : appWidgetIds)
+        {
+            ScrollState.remove(appWidgetId);
+            NoteCache.remove(appWidgetId);
+            ThemeCache.invalidate(appWidgetId);
+            WidgetSizes.remove(appWidgetId);
+        }
+        
         super.onDeleted(context, appWidgetIds);
     }
     
@@ -97,12 +125,31 @@ public class ToDoWidget2x2 extends AppWidgetProvider
             int appWidgetId = extras.getInt(AppWidgetManager.EXTRA_APPWIDGET_ID, AppWidgetManager.INVALID_APPWIDGET_ID);
             updateAppWidget(context, AppWidgetManager.getInstance(context), appWidgetId, MOVE.DOWN);
         }
+        if (BUTTON_PAGE_UP.equals(action))
+        {
+            int appWidgetId = extras.getInt(AppWidgetManager.EXTRA_APPWIDGET_ID, AppWidgetManager.INVALID_APPWIDGET_ID);
+            updateAppWidget(context, AppWidgetManager.getInstance(context), appWidgetId, MOVE.PAGE_UP);
+        }
+        if (BUTTON_PAGE_DOWN.equals(action))
+        {
+            int appWidgetId = extras.getInt(AppWidgetManager.EXTRA_APPWIDGET_ID, AppWidgetManager.INVALID_APPWIDGET_ID);
+            updateAppWidget(context, AppWidgetManager.getInstance(context), appWidgetId, MOVE.PAGE_DOWN);
+        }
+        if (BUTTON_TOP.equals(action))
+        {
+            int appWidgetId = extras.getInt(AppWidgetManager.EXTRA_APPWIDGET_ID, AppWidgetManager.INVALID_APPWIDGET_ID);
+            updateAppWidget(context, AppWidgetManager.getInstance(context), appWidgetId, MOVE.TOP);
+        }
+        if (BUTTON_BOTTOM.equals(action))
+        {
+            int appWidgetId = extras.getInt(AppWidgetManager.EXTRA_APPWIDGET_ID, AppWidgetManager.INVALID_APPWIDGET_ID);
+            updateAppWidget(context, AppWidgetManager.getInstance(context), appWidgetId, MOVE.BOTTOM);
+        }
         if (action.startsWith(TOGGLE))
         {
             int appWidgetId = extras.getInt(AppWidgetManager.EXTRA_APPWIDGET_ID, AppWidgetManager.INVALID_APPWIDGET_ID);
             int noteid = Integer.parseInt(action.substring(TOGGLE.length()));
-            toggleNote(context, noteid);
-            updateAppWidget(context, AppWidgetManager.getInstance(context), appWidgetId, MOVE.NONE);
+            toggleNote(context, AppWidgetManager.getInstance(context), appWidgetId, noteid);
         }
         if (AppWidgetManager.ACTION_APPWIDGET_DELETED.equals(action)) { 
             int appWidgetId = extras.getInt(AppWidgetManager.EXTRA_APPWIDGET_ID, AppWidgetManager.INVALID_APPWIDGET_ID);
@@ -114,158 +161,86 @@ public class ToDoWidget2x2 extends AppWidgetProvider
         } 
     } 
 
-    public static void toggleNote(Context context, int noteId)
+    /**
+     * Toggles a note and redraws the widget using a single database
+     * connection. The toggled row is patched into the {@link NoteCache} so
+     * the redraw doesn't need to reload the list.
+     */
+    public static void toggleNote(Context context, AppWidgetManager manager, int appWidgetId, int noteId)
     {
-    	try
-    	{
-    		// create a database connection
-	        ToDoDatabase db = new ToDoDatabase(context.getApplicationContext());
-	        Note n = db.getNote(noteId);
-	        n.status = n.status == Status.CREATED ? Status.FINISHED : Status.CREATED;
-	        db.updateNote(n);
-	        db.close();
-    	}
-    	catch (NullPointerException npe) { /* do nothing */ }
+        long start = SystemClock.uptimeMillis();
+        
+        ToDoDatabase db = new ToDoDatabase(context.getApplicationContext());
+        Note n = db.toggleNote(noteId);
+        if (n != null) NoteCache.update(n);
+        
+        updateAppWidget(context, manager, db, appWidgetId, MOVE.NONE);
+        db.close();
+        
+        if (ToDoActivity.debug) Log.i(LOG_TAG, "Toggled note " + noteId + " and rendered in " + (SystemClock.uptimeMillis() - start) + "ms");
     }
     
     public static void updateAppWidget(Context context, AppWidgetManager manager, int appWidgetId, MOVE move)
+    {
+        // create a database connection
+        ToDoDatabase db = new ToDoDatabase(context.getApplicationContext());
+        updateAppWidget(context, manager, db, appWidgetId, move);
+        db.close();
+    }
+    
+    /**
+     * Redraws a widget using an already open database
+     */
+    private static void updateAppWidget(Context context, AppWidgetManager manager, ToDoDatabase db, int appWidgetId, MOVE move)
     {
         try
         {
             if (ToDoActivity.debug)  Log.i(LOG_TAG, "updating widget #" + appWidgetId);
             
-            // create a database connection
-            ToDoDatabase db = new ToDoDatabase(context.getApplicationContext());
-            
             // read all required info from db
-            PreferenceManager pm = new PreferenceManager(context, db);
+            PreferenceManager pm = ThemeCache.get(context, db, appWidgetId);
             String title = db.getTitle(appWidgetId);
             
             boolean showScrollButtons = pm.getScrollButtons();
             
-            int offset = db.getOffset(appWidgetId);
-            
-            // get all notes
-            LinkedList<Note> notes = db.getAllNotes(appWidgetId);
-
-            int maxCurrNotes = notes.size();
-            
-            // update the offset
-            if (move == MOVE.UP)
+            // get all notes, reusing the last read if the list hasn't changed
+            int version = db.getListVersion(appWidgetId);
+            LinkedList<Note> notes = NoteCache.get(appWidgetId, version);
+            if (notes == null)
             {
-            	offset--;
-            	
-            	// stop moving into negative numbers
-            	if (offset <= 0) offset = 0;
+                notes = db.getAllNotes(appWidgetId);
+                NoteCache.put(appWidgetId, version, notes);
             }
-            if (move == MOVE.DOWN)
-            {
-            	offset++;
 
-            	// don't scroll past last item
-                if (offset >= maxCurrNotes && maxCurrNotes > 0) offset = maxCurrNotes-1;
-            }
-            if (move != MOVE.NONE)
-            {
-            	db.setOffset(appWidgetId, offset);
-            }
-            
-        	// now close the db
-            db.close();
-            db = null;
+            int maxCurrNotes = notes.size();
             
-            // update the ui
-            RemoteViews views = new RemoteViews(context.getPackageName(), R.layout.widget);
-
-            views.setImageViewResource(R.id.widget_background, pm.getBackground());
-
-            // set top padding
-            views.setViewVisibility(R.id.padding1, View.GONE);
-            views.setViewVisibility(R.id.padding2, View.GONE);
-            int padding = pm.getTopPadding();
-            if (padding == 1) views.setViewVisibility(R.id.padding1, View.VISIBLE);
-            if (padding == 2)
-            {
-                views.setViewVisibility(R.id.padding1, View.VISIBLE);
-                views.setViewVisibility(R.id.padding2, View.VISIBLE);
-            }
+            // only the rows that can be seen at this size need drawing, and
+            // a page scroll moves by as many rows as fit
+            WidgetSizes.Size size = WidgetSizes.get(context, manager, appWidgetId);
+            int rows = size != null ? size.rowCapacity : WidgetRenderer.MAX_ROWS;
+            int pageSize = size != null ? size.getPageSize(pm.getSize()) : PAGE_SIZE;
+            boolean jumps = size == null || size.hasJumpButtons();
             
-            // set the note title
-            views.setTextViewText(R.id.notetitle, Html.fromHtml("<b><u>"+title.trim()+"</u></b>"));
-            views.setViewVisibility(R.id.notetitle, View.VISIBLE);
-            views.setTextColor(R.id.notetitle, pm.getActiveColor());
-            views.setFloat(R.id.notetitle, "setTextSize", pm.getTitleSize());
+            // update the offset, it is written once the widget is drawn
+            int offset = ScrollState.move(db, appWidgetId, move, maxCurrNotes, pageSize);
             
-            if (title.length() == 0)
-            {
-                views.setViewVisibility(R.id.notetitle, View.GONE);
-            }
-                
-            int noteField;
-            int imageField;
-            int j = 0;
+            // update the ui
+            final RemoteViews views = new RemoteViews(context.getPackageName(), R.layout.widget);
+            final Context c = context;
+            final int widgetId = appWidgetId;
             
-            if (showScrollButtons)
+            WidgetRenderer.render(new WidgetRenderer.RemoteViewsTarget(views), pm, title, notes, offset, rows, jumps, new WidgetRenderer.RowListener()
             {
-            	views.setViewVisibility(R.id.widget_scroll_up, View.VISIBLE);
-            	views.setViewVisibility(R.id.widget_scroll_down, View.VISIBLE);
-                views.setImageViewResource(R.id.widget_scroll_up, R.drawable.background_99_0);
-                views.setImageViewResource(R.id.widget_scroll_down, R.drawable.background_99_0);
-            	
-            	// set the scrolling button visibility
-            	if (offset > 0) views.setImageViewResource(R.id.widget_scroll_up, R.drawable.action_scroll_up);
-            	if (maxCurrNotes > 1 && offset < maxCurrNotes-1) views.setImageViewResource(R.id.widget_scroll_down, R.drawable.action_scroll_down);
-            }
-            else
-            {
-            	views.setViewVisibility(R.id.widget_scroll_up, View.GONE);
-            	views.setViewVisibility(R.id.widget_scroll_down, View.GONE);
-            }
-
-//            Log.i(LOG_TAG,"MAX_NOTES:" +MAX_NOTES);
-//            Log.i(LOG_TAG,"offset:" +offset);
-//            Log.i(LOG_TAG,"showScrollButtons:"+ (showScrollButtons?"on":"off"));
-            for (int i=offset; j< MAX_NOTES; i++)
-            {
-                try
+                public void onRowBound(int iconId, Note n)
                 {
-                    j++;
-                    noteField = R.id.class.getDeclaredField("note_"+(j)).getInt(null);
-                    imageField = R.id.class.getDeclaredField("noteimage_"+(j)).getInt(null);
-                    views.setViewVisibility(noteField, View.INVISIBLE);
-                    views.setViewVisibility(imageField, View.INVISIBLE);
-                    
-                    views.setFloat(noteField, "setTextSize", pm.getSize());
-                    
-                    if (i >= maxCurrNotes) { continue; }
-                    
-                    Note n = notes.get(i);
-                    if (n.text != null && !n.text.equals(""))
-                    {
-                        views.setViewVisibility(noteField, View.VISIBLE);
-                        views.setViewVisibility(imageField, View.VISIBLE);
-                        if (pm.isEmptyIcon()) views.setViewVisibility(imageField, View.GONE);
-                        int imageDrawable = pm.getActiveIcon();
-                        if (n.status == Note.Status.FINISHED) imageDrawable = pm.getFinishedIcon();
-                        views.setImageViewResource(imageField, imageDrawable);
-                        Intent intent = new Intent(context, ToDoWidget2x2.class);
-                        intent.setAction(TOGGLE+n.id);
-                        intent.putExtra(AppWidgetManager.EXTRA_APPWIDGET_ID, appWidgetId);
-                        intent.putExtra(TOGGLE+n.id, 1);
-                        PendingIntent pendingIntent = PendingIntent.getBroadcast(context, appWidgetId, intent, 0);
-                        views.setOnClickPendingIntent(imageField, pendingIntent);
-
-                        int textColor = pm.getActiveColor();
-                        if (n.status == Note.Status.FINISHED) textColor = pm.getFinishedColor();
-                        views.setTextViewText(noteField, n.text);
-                        views.setTextColor(noteField, textColor);
-                    }
+                    Intent intent = new Intent(c, ToDoWidget2x2.class);
+                    intent.setAction(TOGGLE+n.id);
+                    intent.putExtra(AppWidgetManager.EXTRA_APPWIDGET_ID, widgetId);
+                    intent.putExtra(TOGGLE+n.id, 1);
+                    PendingIntent pendingIntent = PendingIntent.getBroadcast(c, widgetId, intent, 0);
+                    views.setOnClickPendingIntent(iconId, pendingIntent);
                 }
-                catch (Exception e)
-                {
-                    e.printStackTrace();
-                }
-            }
+            });
     
             // Tell the AppWidgetManager to perform an update on the current App Widget
             // Create an Intent to launch ToDoActivity
@@ -279,26 +254,39 @@ public class ToDoWidget2x2 extends AppWidgetProvider
             
             if (showScrollButtons)
             {
-	            intent = new Intent(context, ToDoWidget2x2.class);
-	            intent.setAction(BUTTON_UP);
-	            intent.putExtra(AppWidgetManager.EXTRA_APPWIDGET_ID, appWidgetId);
-	            intent.putExtra(BUTTON_UP, 1);
-	            pendingIntent = PendingIntent.getBroadcast(context, appWidgetId, intent, 0);
-	            views.setOnClickPendingIntent(R.id.widget_scroll_up, pendingIntent);
-	
-	            intent = new Intent(context, ToDoWidget2x2.class);
-	            intent.setAction(BUTTON_DOWN);
-	            intent.putExtra(AppWidgetManager.EXTRA_APPWIDGET_ID, appWidgetId);
-	            intent.putExtra(BUTTON_DOWN, 1);
-	            pendingIntent = PendingIntent.getBroadcast(context, appWidgetId, intent, 0);
-	            views.setOnClickPendingIntent(R.id.widget_scroll_down, pendingIntent);
+                setScrollIntent(context, views, appWidgetId, R.id.widget_scroll_up, BUTTON_UP);
+                setScrollIntent(context, views, appWidgetId, R.id.widget_scroll_down, BUTTON_DOWN);
+                if (jumps)
+                {
+                    setScrollIntent(context, views, appWidgetId, R.id.widget_page_up, BUTTON_PAGE_UP);
+                    setScrollIntent(context, views, appWidgetId, R.id.widget_page_down, BUTTON_PAGE_DOWN);
+                    setScrollIntent(context, views, appWidgetId, R.id.widget_scroll_top, BUTTON_TOP);
+                    setScrollIntent(context, views, appWidgetId, R.id.widget_scroll_bottom, BUTTON_BOTTOM);
+                }
             }
             
             manager.updateAppWidget(appWidgetId, views);
+            
+            // persist a scroll before the broadcast returns and the process
+            // can be killed
+            ScrollState.flush(db);
         }
         catch (Exception e) 
         {
             e.printStackTrace();
         }
     }
+    
+    /**
+     * Points a scroll button at a broadcast of its action back to this widget
+     */
+    private static void setScrollIntent(Context context, RemoteViews views, int appWidgetId, int viewId, String action)
+    {
+        Intent intent = new Intent(context, ToDoWidget2x2.class);
+        intent.setAction(action);
+        intent.putExtra(AppWidgetManager.EXTRA_APPWIDGET_ID, appWidgetId);
+        intent.putExtra(action, 1);
+        PendingIntent pendingIntent = PendingIntent.getBroadcast(context, appWidgetId, intent, 0);
+        views.setOnClickPendingIntent(viewId, pendingIntent);
+    }
 }
@@ -0,0 +1,297 @@
+/*******************************************************************************
+ * ToDo List Widget - Android homescreen note taking application
+ * Copyright (C) 2011  Chris Bailey
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.chrisbailey.todo;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import org.chrisbailey.todo.utils.WidgetRenderer;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import android.appwidget.AppWidgetManager;
+import android.appwidget.AppWidgetProviderInfo;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.pm.ActivityInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.content.res.Resources;
+import android.content.res.TypedArray;
+import android.content.res.XmlResourceParser;
+import android.util.Log;
+import android.util.Xml;
+
+/**
+ * The one list of widget sizes. It is read from the manifest the first time
+ * it is needed: every receiver with an appwidget provider is a size, with
+ * the receiver's label, and its cell dimensions taken from the minWidth and
+ * minHeight of its res/xml/todowidget*.xml. The sizes screen, the refresh of
+ * all widgets and the renderer's row budget are all driven from it.
+ */
+public class WidgetSizes
+{
+    private static final String LOG_TAG = "WidgetSizes";
+    
+    // home screen cells are 74dp, less 2dp, see res/xml/todowidget*.xml
+    private static final int CELL_DP = 74;
+    
+    // widget padding above and below the rows, see res/layout/widget.xml
+    private static final int FRAME_DP = 18;
+    
+    // the shortest a row can be, at the smallest font size
+    private static final int MIN_ROW_DP = 16;
+    
+    // a row is at least as tall as its icon, plus the gap above it
+    private static final int ICON_DP = 20;
+    private static final int ROW_GAP_DP = 3;
+    
+    // line height of a row's text relative to its size
+    private static final float LINE_SPACING = 1.2f;
+    
+    // the attributes of <appwidget-provider> a size is read from, in order
+    private static final int [] PROVIDER_ATTRS = { android.R.attr.minWidth, android.R.attr.minHeight };
+    
+    public static class Size
+    {
+        // class name of the provider
+        public final String provider;
+        
+        // string resource of the size's name
+        public final int label;
+        public final int cols;
+        public final int rows;
+        
+        // the most note rows that can ever be visible at this size
+        public final int rowCapacity;
+        
+        Size(String provider, int label, int cols, int rows)
+        {
+            this.provider = provider;
+            this.label = label;
+            this.cols = cols;
+            this.rows = rows;
+            
+            int height = CELL_DP * rows - 2 - FRAME_DP;
+            this.rowCapacity = Math.min((height + MIN_ROW_DP - 1) / MIN_ROW_DP, WidgetRenderer.MAX_ROWS);
+        }
+        
+        /**
+         * Returns the number of rows that fit at a font size, which is how
+         * far a page scroll moves
+         * @param textSize the theme's note size in sp
+         */
+        public int getPageSize(int textSize)
+        {
+            int height = CELL_DP * rows - 2 - FRAME_DP;
+            int row = Math.max(ICON_DP, Math.round(textSize * LINE_SPACING)) + ROW_GAP_DP;
+            return Math.max(1, Math.min(rowCapacity, height / row));
+        }
+        
+        /**
+         * Whether the widget is wide enough for the page and jump buttons
+         * as well as the row buttons
+         */
+        public boolean hasJumpButtons()
+        {
+            return cols >= 2;
+        }
+        
+        public ComponentName getComponent(Context c)
+        {
+            return new ComponentName(c.getPackageName(), provider);
+        }
+    }
+    
+    private static Size [] all;
+    private static final HashMap<String,Size> byClass = new HashMap<String,Size>();
+    
+    /**
+     * Returns every size, smallest first, whether or not it is enabled
+     */
+    public static synchronized Size [] getAll(Context c)
+    {
+        if (all == null)
+        {
+            all = load(c.getApplicationContext());
+            for (Size s : all) byClass.put(s.provider, s);
+        }
+        return all;
+    }
+    
+    /**
+     * Reads the sizes from the receivers in the manifest, in one query that
+     * includes disabled receivers, so sizes switched off still get listed
+     */
+    private static Size [] load(Context c)
+    {
+        ArrayList<Size> sizes = new ArrayList<Size>();
+        Resources res = c.getResources();
+        int flags = PackageManager.GET_RECEIVERS | PackageManager.GET_DISABLED_COMPONENTS | PackageManager.GET_META_DATA;
+        try
+        {
+            PackageInfo info = c.getPackageManager().getPackageInfo(c.getPackageName(), flags);
+            if (info.receivers != null)
+            {
+                for (ActivityInfo r : info.receivers)
+                {
+                    if (r.metaData == null) continue;
+                    int xml = r.metaData.getInt(AppWidgetManager.META_DATA_APPWIDGET_PROVIDER);
+                    if (xml == 0) continue;
+                    
+                    Size s = readProvider(res, xml, r);
+                    if (s != null) sizes.add(s);
+                }
+            }
+        }
+        catch (NameNotFoundException e)
+        {
+            Log.e(LOG_TAG, "Couldn't read the widget providers", e);
+        }
+        
+        Collections.sort(sizes, new Comparator<Size>()
+        {
+            public int compare(Size a, Size b)
+            {
+                return a.cols != b.cols ? a.cols - b.cols : a.rows - b.rows;
+            }
+        });
+        return sizes.toArray(new Size[sizes.size()]);
+    }
+    
+    /**
+     * Reads the size of one receiver from its appwidget provider xml
+     * @return the size, <code>null</code> if the xml can't be read
+     */
+    private static Size readProvider(Resources res, int xml, ActivityInfo receiver)
+    {
+        XmlResourceParser parser = res.getXml(xml);
+        try
+        {
+            int type;
+            while ((type = parser.next()) != XmlPullParser.START_TAG && type != XmlPullParser.END_DOCUMENT);
+            if (type != XmlPullParser.START_TAG) return null;
+            
+            float density = res.getDisplayMetrics().density;
+            TypedArray a = res.obtainAttributes(Xml.asAttributeSet(parser), PROVIDER_ATTRS);
+            int cols = toCells(a.getDimension(0, 0) / density);
+            int rows = toCells(a.getDimension(1, 0) / density);
+            a.recycle();
+            
+            return new Size(receiver.name, receiver.labelRes, cols, rows);
+        }
+        catch (XmlPullParserException e)
+        {
+            Log.e(LOG_TAG, "Couldn't read the size of " + receiver.name, e);
+        }
+        catch (IOException e)
+        {
+            Log.e(LOG_TAG, "Couldn't read the size of " + receiver.name, e);
+        }
+        finally
+        {
+            parser.close();
+        }
+        return null;
+    }
+    
+    /**
+     * Converts a provider's minimum width or height to home screen cells
+     */
+    private static int toCells(float dp)
+    {
+        return Math.max(1, Math.round((dp + 2) / CELL_DP));
+    }
+    
+    // the size of each widget seen so far
+    private static final HashMap<Integer,Size> widgets = new HashMap<Integer,Size>();
+    
+    public static synchronized Size get(Context c, Class<?> provider)
+    {
+        getAll(c);
+        return byClass.get(provider.getName());
+    }
+    
+    /**
+     * Returns the size of a widget, asking the AppWidgetManager only the
+     * first time a widget is seen
+     * @return the size, <code>null</code> if the widget doesn't exist
+     */
+    public static synchronized Size get(Context c, AppWidgetManager manager, int appWidgetId)
+    {
+        Size s = widgets.get(appWidgetId);
+        if (s != null) return s;
+        
+        AppWidgetProviderInfo info = manager.getAppWidgetInfo(appWidgetId);
+        if (info == null) return null;
+        
+        getAll(c);
+        s = byClass.get(info.provider.getClassName());
+        if (s != null) widgets.put(appWidgetId, s);
+        return s;
+    }
+    
+    /**
+     * Records the size of a widget whose provider is already known
+     */
+    public static synchronized void put(int appWidgetId, Size s)
+    {
+        if (s != null) widgets.put(appWidgetId, s);
+    }
+    
+    public static synchronized void remove(int appWidgetId)
+    {
+        widgets.remove(appWidgetId);
+    }
+    
+    /**
+     * Returns the ids of all widgets, of every size. The installed providers
+     * are read once, and only sizes that are installed are asked for their
+     * instances.
+     */
+    public static int [] getAllWidgetIds(Context c, AppWidgetManager manager)
+    {
+        HashSet<ComponentName> installed = new HashSet<ComponentName>();
+        for (AppWidgetProviderInfo i : manager.getInstalledProviders())
+        {
+            installed.add(i.provider);
+        }
+        
+        ArrayList<Integer> ids = new ArrayList<Integer>();
+        for (Size s : getAll(c))
+        {
+            ComponentName component = s.getComponent(c);
+            if (!installed.contains(component)) continue;
+            
+            for (int id : manager.getAppWidgetIds(component))
+            {
+                put(id, s);
+                ids.add(id);
+            }
+        }
+        
+        int [] result = new int[ids.size()];
+        for (int i = 0; i < result.length; i++) result[i] = ids.get(i);
+        return result;
+    }
+}
@@ -19,99 +19,125 @@ package org.chrisbailey.todo.activities;
 
 import java.util.ArrayList;
 
-import org.chrisbailey.todo.ToDoWidget2x4;
-import org.chrisbailey.todo.ToDoWidget2x3;
 import org.chrisbailey.todo.R;
-import org.chrisbailey.todo.ToDoWidget2x1;
-import org.chrisbailey.todo.ToDoWidget1x1;
-import org.chrisbailey.todo.ToDoWidget1x2;
-import org.chrisbailey.todo.ToDoWidget1x3;
-import org.chrisbailey.todo.ToDoWidget1x4;
-import org.chrisbailey.todo.ToDoWidget3x1;
-import org.chrisbailey.todo.ToDoWidget3x2;
-import org.chrisbailey.todo.ToDoWidget3x3;
-import org.chrisbailey.todo.ToDoWidget3x4;
-import org.chrisbailey.todo.ToDoWidget4x1;
-import org.chrisbailey.todo.ToDoWidget4x2;
-import org.chrisbailey.todo.ToDoWidget4x3;
-import org.chrisbailey.todo.ToDoWidget4x4;
 import org.chrisbailey.todo.ToDoWidget2x2;
+import org.chrisbailey.todo.WidgetSizes;
 import org.chrisbailey.todo.ToDoWidget2x2.MOVE;
 import org.chrisbailey.todo.db.ToDoDatabase;
+import org.chrisbailey.todo.utils.Note;
 import org.chrisbailey.todo.utils.PreferenceManager;
+import org.chrisbailey.todo.utils.ThumbnailCache;
+import org.chrisbailey.todo.utils.WidgetRenderer;
 import org.chrisbailey.todo.widgets.ColorPickerDialog;
 import org.chrisbailey.todo.widgets.NumberPicker;
 
 import android.app.Activity;
 import android.app.Dialog;
 import android.appwidget.AppWidgetManager;
-import android.content.ComponentName;
 import android.content.Context;
+import android.content.res.Resources;
 import android.content.res.TypedArray;
+import android.graphics.Bitmap;
 import android.graphics.drawable.GradientDrawable;
+import android.os.AsyncTask;
 import android.os.Bundle;
-import android.text.Html;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.View;
 import android.view.ViewGroup;
 import android.view.View.OnClickListener;
 import android.widget.AdapterView;
 import android.widget.BaseAdapter;
+import android.widget.CheckBox;
+import android.widget.CompoundButton;
 import android.widget.Gallery;
 import android.widget.ImageView;
 import android.widget.LinearLayout;
-import android.widget.RelativeLayout;
-import android.widget.TextView;
 import android.widget.AdapterView.OnItemClickListener;
 import android.widget.ImageView.ScaleType;
 
-public class PreferencesActivity extends Activity implements ColorPickerDialog.OnColorChangedListener, NumberPicker.OnNumberChangedListener, OnItemClickListener, View.OnClickListener {
+public class PreferencesActivity extends Activity implements ColorPickerDialog.OnColorChangedListener, NumberPicker.OnNumberSettledListener, OnItemClickListener, View.OnClickListener {
 
     // static dialog indicators
     public static final int DIALOG_SELECT_COLOR = 1;
     
     public static final String LOG_TAG = "PreferencesActivity";
     
+    // instance state keys
+    private static final String STATE_ACTIVE_COLOR_CHOOSER = "active_color_chooser";
+    
     View colorPickerActive;
     View colorPickerFinished;
-    public static int[] imageBackgrounds;
-    public static int[] imageIcons;
+    private int[] imageBackgrounds;
+    private int[] imageIcons;
     
     /* References to preview items */
-    private ImageView preview;
+    private View previewWidget;
+    private WidgetRenderer.Target previewTarget;
+    private ArrayList<Note> previewNotes;
+    private String previewTitle;
+    private int previewRows;
     private ImageView ivActiveIcon;
     private ImageView ivFinishedIcon;
     private ImageView ivScrollUp;
     private ImageView ivScrollDown;
-    private static TextView tvTitle;
-    private static ArrayList<TextView> tvNotes;
-    private static ArrayList<ImageView> ivIcons;
-    private TextView padding1;
-    private TextView padding2;
     private LinearLayout scrollButtonLayout;
-    private static final String NOTE_VIEW_PREFIX = "note_";
-    private static final String ICON_VIEW_PREFIX = "noteimage_";
     
-    private static PreferenceManager pm;
+    // the preferences being edited, kept across configuration changes
+    private PreferenceManager pm;
     
     private boolean activeColorChooser = true;
-
-    int originalSize = 20;
     
-    private int defaultScale;
+    private final PreviewController previewController = new PreviewController();
     
     ToDoDatabase db;
     
+    // the gallery adapters, each filling its thumbnails in the background
+    private ImageAdapter backgroundAdapter;
+    private ImageAdapter iconAdapter;
+    
     /** Called when the activity is first created. */
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.preferences);
         
-        db = new ToDoDatabase(this);
-        pm = new PreferenceManager(this, db);
-        db.close();
-        db = null;
+        // the widget the preferences were opened from, if any
+        int widgetId = ToDoDatabase.GLOBAL_THEME;
+        if (getIntent().getExtras() != null)
+        {
+            widgetId = getIntent().getExtras().getInt(AppWidgetManager.EXTRA_APPWIDGET_ID, ToDoDatabase.GLOBAL_THEME);
+        }
+        
+        // carry on with any unsaved edits if the activity was recreated,
+        // the PreferenceManager holds no references to the old activity
+        pm = (PreferenceManager) getLastNonConfigurationInstance();
+        if (pm == null)
+        {
+            db = new ToDoDatabase(this);
+            pm = new PreferenceManager(this, db, widgetId);
+            db.close();
+            db = null;
+        }
+        
+        if (savedInstanceState != null)
+        {
+            activeColorChooser = savedInstanceState.getBoolean(STATE_ACTIVE_COLOR_CHOOSER, true);
+        }
+        
+        if (widgetId != ToDoDatabase.GLOBAL_THEME)
+        {
+            CheckBox widgetOnly = (CheckBox) findViewById(R.id.widget_only);
+            widgetOnly.setVisibility(View.VISIBLE);
+            widgetOnly.setChecked(pm.isWidgetOnly());
+            widgetOnly.setOnCheckedChangeListener(new CompoundButton.OnCheckedChangeListener()
+            {
+                public void onCheckedChanged(CompoundButton buttonView, boolean isChecked)
+                {
+                    setWidgetOnly(isChecked);
+                }
+            });
+        }
         
         colorPickerActive = (View) findViewById(R.id.pick_color_active);
         colorPickerActive.setOnClickListener(new OnClickListener() 
@@ -139,7 +165,7 @@ public class PreferencesActivity extends Activity implements ColorPickerDialog.O
         try
         {
             NumberPicker fontSizeSelector = (NumberPicker) findViewById(R.id.font_size_selector);
-            fontSizeSelector.setOnChangeListener(this);
+            fontSizeSelector.setOnSettledListener(this);
             fontSizeSelector.setRange(10, 30);
             fontSizeSelector.setCurrent(pm.getSize());
         } 
@@ -177,73 +203,126 @@ public class PreferencesActivity extends Activity implements ColorPickerDialog.O
         
         // init the background selector
         Gallery backgroundSelector = (Gallery) findViewById(R.id.background_selector);
-        backgroundSelector.setAdapter(new ImageAdapter(this, 150, 100, imageBackgrounds, PreferenceManager.BACKGROUND_DRAWABLE_PREFIX, ScaleType.FIT_CENTER));
+        backgroundAdapter = new ImageAdapter(this, 150, 100, imageBackgrounds, PreferenceManager.BACKGROUND_DRAWABLE_PREFIX, ScaleType.FIT_CENTER);
+        backgroundSelector.setAdapter(backgroundAdapter);
         backgroundSelector.setOnItemClickListener(this);
         
-        // set the currently selected background as the default
+        
+        // init the icon selector
+        Gallery iconSelector = (Gallery) findViewById(R.id.icon_selector);
+        iconAdapter = new ImageAdapter(this, 70, 70, imageIcons, PreferenceManager.ACTIVE_DRAWABLE_PREFIX, ScaleType.CENTER);
+        iconSelector.setAdapter(iconAdapter);
+        iconSelector.setOnItemClickListener(this);
+
+        // select the current background & icon
+        setGallerySelections();
+        
+        // show the current settings
+        initPreview();
+        previewController.invalidate(PreviewController.ALL);
+    }
+    
+    private void setGallerySelections()
+    {
+        Gallery backgroundSelector = (Gallery) findViewById(R.id.background_selector);
         int fieldId = pm.getBackgroundId();
         for (int i = 0; i < imageBackgrounds.length; i++)
         {
         	if (imageBackgrounds[i] == fieldId) backgroundSelector.setSelection(i);
         }
         
-        // init the icon selector
         Gallery iconSelector = (Gallery) findViewById(R.id.icon_selector);
-        iconSelector.setAdapter(new ImageAdapter(this, 70, 70, imageIcons, PreferenceManager.ACTIVE_DRAWABLE_PREFIX, ScaleType.CENTER));
-        iconSelector.setOnItemClickListener(this);
-
-        // set the currently selected active icon as the default
         fieldId = pm.getIconId();
         for (int i = 0; i < imageIcons.length; i++)
         {
         	if (imageIcons[i] == fieldId) iconSelector.setSelection(i);
         }
+    }
+    
+    /**
+     * Switches between editing the widget's own theme and the global one
+     */
+    private void setWidgetOnly(boolean b)
+    {
+        db = new ToDoDatabase(this);
+        pm.setWidgetOnly(this, db, b);
+        db.close();
+        db = null;
         
-        // set default values
-        defaultScale = (int) new TextView(this).getTextSize();
-        
-        // update
-        updateIcons(2);
+        // going back to the global theme reloads it, so show its values
+        setBackgroundColor(colorPickerActive, pm.getActiveColor());
+        setBackgroundColor(colorPickerFinished, pm.getFinishedColor());
+        try
+        {
+            ((NumberPicker) findViewById(R.id.font_size_selector)).setCurrent(pm.getSize());
+        }
+        catch (ClassCastException issue6894)
+        {
+            // ignore, as in onCreate
+        }
+        setScrollButtonState(pm.getScrollButtons());
+        setGallerySelections();
+        previewController.invalidate(PreviewController.ALL);
+    }
+    
+    @Override
+    protected void onDestroy()
+    {
+        super.onDestroy();
+        backgroundAdapter.cancel();
+        iconAdapter.cancel();
+        previewWidget.removeCallbacks(previewController);
+    }
+    
+    @Override
+    public Object onRetainNonConfigurationInstance()
+    {
+        return pm;
+    }
+    
+    @Override
+    protected void onSaveInstanceState(Bundle outState)
+    {
+        super.onSaveInstanceState(outState);
+        outState.putBoolean(STATE_ACTIVE_COLOR_CHOOSER, activeColorChooser);
     }
     
     private void saveAndClose()
     {
+        // nothing changed, nothing to write or redraw
+        if (!pm.isDirty())
+        {
+            finish();
+            return;
+        }
+        
         db = new ToDoDatabase(PreferencesActivity.this);
-        pm.save(db);
+        boolean saved = pm.save(db);
         db.close();
         db = null;
-        setResult(0, null);
+        
+        if (!saved)
+        {
+            finish();
+            return;
+        }
+        setResult(RESULT_OK, null);
 
         // refresh any visible widgets
         AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(getApplicationContext());        
-        refreshWidgets(appWidgetManager, ToDoWidget2x2.class);
-        refreshWidgets(appWidgetManager, ToDoWidget2x4.class);
-        refreshWidgets(appWidgetManager, ToDoWidget2x3.class);
-        refreshWidgets(appWidgetManager, ToDoWidget2x1.class);
-        refreshWidgets(appWidgetManager, ToDoWidget1x1.class);
-        refreshWidgets(appWidgetManager, ToDoWidget1x2.class);
-        refreshWidgets(appWidgetManager, ToDoWidget1x3.class);
-        refreshWidgets(appWidgetManager, ToDoWidget1x4.class);
-        refreshWidgets(appWidgetManager, ToDoWidget3x1.class);
-        refreshWidgets(appWidgetManager, ToDoWidget3x2.class);
-        refreshWidgets(appWidgetManager, ToDoWidget3x3.class);
-        refreshWidgets(appWidgetManager, ToDoWidget3x4.class);
-        refreshWidgets(appWidgetManager, ToDoWidget4x1.class);
-        refreshWidgets(appWidgetManager, ToDoWidget4x2.class);
-        refreshWidgets(appWidgetManager, ToDoWidget4x3.class);
-        refreshWidgets(appWidgetManager, ToDoWidget4x4.class);
-        finish();
-    }
-    
-    private void refreshWidgets(AppWidgetManager appWidgetManager, Class <? extends ToDoWidget2x2> c)
-    {
-    	ComponentName component = new ComponentName(getApplicationContext(), c);
-        int [] ids = appWidgetManager.getAppWidgetIds(component);
-        for (int i : ids)
+        if (pm.isWidgetOnly())
+        {
+            // only the one widget is affected
+            ToDoWidget2x2.updateAppWidget(getApplicationContext(), appWidgetManager, pm.getWidgetId(), MOVE.NONE);
+            finish();
+            return;
+        }
+        for (int id : WidgetSizes.getAllWidgetIds(getApplicationContext(), appWidgetManager))
         {
-        	if (ToDoActivity.debug) Log.i(LOG_TAG, "Sending intents to widget #" + ids);
-            ToDoWidget2x2.updateAppWidget(getApplicationContext(), appWidgetManager, i, MOVE.NONE);
+            if (ToDoActivity.debug) Log.i(LOG_TAG, "Sending intents to widget #" + id);
+            ToDoWidget2x2.updateAppWidget(getApplicationContext(), appWidgetManager, id, MOVE.NONE);
         }
+        finish();
     }
     
     @Override
@@ -273,10 +352,7 @@ public class PreferencesActivity extends Activity implements ColorPickerDialog.O
     protected void initDrawableLists()
     {
         imageBackgrounds = pm.getAllBackgrounds();
-        imageIcons = pm.getAllIcons();db = new ToDoDatabase(PreferencesActivity.this);
-        pm.save(db);
-        db.close();
-        db = null;
+        imageIcons = pm.getAllIcons();
     }
     
     /* Fired when scroll button option clicked */
@@ -284,6 +360,7 @@ public class PreferencesActivity extends Activity implements ColorPickerDialog.O
 		boolean b = !pm.getScrollButtons();
 		setScrollButtonState(b);
 		pm.setScrollButtons(b);
+		previewController.invalidate(PreviewController.SCROLL);
 	}
 	
 	private void setScrollButtonState(boolean b)
@@ -317,7 +394,7 @@ public class PreferencesActivity extends Activity implements ColorPickerDialog.O
 
         }
         
-        updateIcons(2);
+        previewController.invalidate(PreviewController.COLORS);
     }
 
     private void setBackgroundColor(View v, int c)
@@ -328,11 +405,11 @@ public class PreferencesActivity extends Activity implements ColorPickerDialog.O
         v.setBackgroundDrawable(shape);
     }
     
-    public void onNumberChanged(NumberPicker picker, int oldVal, int newVal)
+    public void onNumberSettled(NumberPicker picker, int value)
     {
-        if (ToDoActivity.debug) Log.i(LOG_TAG,"Font size changed to " + newVal);
-        pm.setSize(newVal);
-        updateIcons(2);
+        if (ToDoActivity.debug) Log.i(LOG_TAG,"Font size changed to " + value);
+        pm.setSize(value);
+        previewController.invalidate(PreviewController.SIZE);
     }
     
     @SuppressWarnings("unchecked")
@@ -341,130 +418,118 @@ public class PreferencesActivity extends Activity implements ColorPickerDialog.O
         if (parent.getId() == R.id.background_selector)
         {
             pm.setBackground(imageBackgrounds[position]);
+            previewController.invalidate(PreviewController.BACKGROUND);
         }
         else
         {
             pm.setIcons(imageIcons[position]);
+            previewController.invalidate(PreviewController.ICONS);
         }
-        updateIcons(2);
     }
 
-    public void updateIcons(int max)
+    /**
+     * Inflates a copy of the widget layout for the preview and fills it with
+     * sample notes, alternately active and finished
+     */
+    private void initPreview()
     {
-        try
-        {
-            if (preview == null)
-            {
-                preview = (ImageView) findViewById(R.id.preview);
-                tvTitle = (TextView) findViewById(R.id.notetitle);
-
-                padding1 = (TextView) findViewById(R.id.padding1);
-                padding2 = (TextView) findViewById(R.id.padding2);
-                
-                // bold & underline as per the real widget
-                tvTitle.setText(Html.fromHtml("<b><u>"+tvTitle.getText().toString()+"</u></b>"));
-                tvNotes = new ArrayList<TextView>();
-                ivIcons = new ArrayList<ImageView>();
-
-                ivActiveIcon = (ImageView) findViewById(R.id.active_color_icon);
-                ivFinishedIcon = (ImageView) findViewById(R.id.finished_color_icon);
-                for (int i = 0; i < max; i++)
-                {
-                    tvNotes.add((TextView) findViewById(getNoteId(i)));
-                    ivIcons.add((ImageView) findViewById(getIconId(i)));
-                }
-            }
-            pm.setBackground(pm.getBackgroundId());
-            
-            preview.setImageResource(pm.getBackground());
-            
-            // set top padding
-            padding1.setVisibility(View.GONE);
-            padding2.setVisibility(View.GONE);
-
-            int padding = pm.getTopPadding();
-            if (padding == 1) padding1.setVisibility(View.VISIBLE);
-            if (padding == 2)
-            {
-                padding1.setVisibility(View.VISIBLE);
-                padding2.setVisibility(View.VISIBLE);
-            }
-            
-            tvTitle.setTextColor(pm.getActiveColor());
-            tvTitle.setTextSize(pm.getTitleSize());
-
-            tvNotes.get(0).setTextColor(pm.getActiveColor());
-            tvNotes.get(0).setTextSize(pm.getSize());
-
-            tvNotes.get(1).setTextColor(pm.getFinishedColor());
-            tvNotes.get(1).setTextSize(pm.getSize());
-
-            // set height of icon
-            float scalingFactor = (float) pm.getSize() / (float) defaultScale;
-            int newH = (int) (originalSize * scalingFactor);
-
-            setIcon(ivIcons.get(0), pm.getActiveIcon(), originalSize, newH);
-            setIcon(ivIcons.get(1), pm.getFinishedIcon(), originalSize, newH);
-
-            ivActiveIcon.setBackgroundResource(pm.getActiveIcon());
-            ivFinishedIcon.setBackgroundResource(pm.getFinishedIcon());
-
-        }
-        catch (Exception e)
+        ViewGroup container = (ViewGroup) findViewById(R.id.preview_widget);
+        previewWidget = getLayoutInflater().inflate(R.layout.widget, container, false);
+        container.addView(previewWidget);
+        previewTarget = new WidgetRenderer.ViewTarget(previewWidget);
+        
+        ivActiveIcon = (ImageView) findViewById(R.id.active_color_icon);
+        ivFinishedIcon = (ImageView) findViewById(R.id.finished_color_icon);
+        
+        // the preview is the size of a 2x2 widget
+        WidgetSizes.Size previewSize = WidgetSizes.get(this, ToDoWidget2x2.class);
+        previewRows = previewSize != null ? previewSize.rowCapacity : WidgetRenderer.MAX_ROWS;
+        previewTitle = getString(R.string.preview_title);
+        previewNotes = new ArrayList<Note>();
+        String [] text = getResources().getStringArray(R.array.preview_notes);
+        for (int i = 0; i < text.length; i++)
         {
+            Note n = new Note(AppWidgetManager.INVALID_APPWIDGET_ID);
+            n.text = text[i];
+            if (i % 2 == 1) n.status = Note.Status.FINISHED;
+            previewNotes.add(n);
         }
     }
     
-    private void setIcon(ImageView v, int ref, int w, int h)
+    /**
+     * Keeps the preview in step with the preferences. Changes are collected
+     * and applied together at most once a frame, so a stream of color
+     * changes doesn't restyle the preview for every step. The font size is
+     * only taken once the NumberPicker settles. Only the parts that changed
+     * are redrawn, by the same {@link WidgetRenderer} as the widget.
+     */
+    class PreviewController implements Runnable
     {
-        RelativeLayout.LayoutParams params = (RelativeLayout.LayoutParams) v.getLayoutParams();
-        params.height = h;
-        params.width = w;
-
-        v.setLayoutParams(params);
-        v.setImageResource(ref);
+        static final int BACKGROUND = 1;
+        static final int COLORS = 2;
+        static final int SIZE = 4;
+        static final int ICONS = 8;
+        static final int SCROLL = 16;
+        static final int ALL = 31;
         
-        v.setVisibility(View.VISIBLE);
-        if (pm.isEmptyIcon()) v.setVisibility(View.GONE);
-    }
-
-    public static int getNoteId(int i)
-    {
-    	ViewField f = new ViewField(NOTE_VIEW_PREFIX);
-        return f.getViewField(i);
-    }
-    
-    public static int getIconId(int i)
-    {
-    	ViewField f = new ViewField(ICON_VIEW_PREFIX);
-        return f.getViewField(i);
-    }
-    
-    public static class ViewField
-    {
-        String field;
+        // roughly one frame at 60fps
+        private static final int FRAME_MS = 16;
+        
+        private int pending = 0;
+        private boolean posted = false;
+        private long lastApplied = 0;
         
-        public ViewField(String s)
+        /**
+         * Marks parts of the preview as out of date
+         * @param what any of {@link #BACKGROUND}, {@link #COLORS},
+         *        {@link #SIZE}, {@link #ICONS} and {@link #SCROLL}
+         */
+        void invalidate(int what)
         {
-            field = s;
+            pending |= what;
+            if (posted) return;
+            
+            posted = true;
+            long wait = lastApplied + FRAME_MS - SystemClock.uptimeMillis();
+            previewWidget.postDelayed(this, Math.max(wait, 0));
         }
         
-        public int getViewField(int i)
+        public void run()
         {
-            try 
+            posted = false;
+            lastApplied = SystemClock.uptimeMillis();
+            
+            int what = pending;
+            pending = 0;
+            
+            if ((what & BACKGROUND) != 0)
+            {
+                WidgetRenderer.renderBackground(previewTarget, pm);
+            }
+            if ((what & (COLORS | SIZE)) != 0)
+            {
+                WidgetRenderer.renderTitle(previewTarget, pm, previewTitle);
+            }
+            if ((what & (COLORS | SIZE | ICONS)) != 0)
             {
-                i++;
-                return R.id.class.getField(field+i).getInt(null);
-            } catch (Exception e)
+                WidgetRenderer.renderRows(previewTarget, pm, previewNotes, 0, previewRows, null);
+            }
+            if ((what & SCROLL) != 0)
+            {
+                WidgetRenderer.renderScrollButtons(previewTarget, pm, 0, previewNotes.size(), true);
+            }
+            if ((what & ICONS) != 0)
             {
-                Log.e(LOG_TAG,"Error obtaining drawable",e);
+                ivActiveIcon.setBackgroundResource(pm.getActiveIcon());
+                ivFinishedIcon.setBackgroundResource(pm.getFinishedIcon());
             }
-            return -1;
         }
     }
     
     /*
-     * Handles the population and selection of a Gallery widget
+     * Handles the population and selection of a Gallery widget. Items show
+     * thumbnails from the {@link ThumbnailCache}, any that are missing are
+     * rendered in the background and shown as they become ready.
      */
     public class ImageAdapter extends BaseAdapter {
         int mGalleryItemBackground;
@@ -474,6 +539,11 @@ public class PreferencesActivity extends Activity implements ColorPickerDialog.O
         String mField;
         ScaleType mScaleType;
         
+        // resource ids of the drawables, resolved once up front
+        int [] mResIds;
+        
+        private ThumbnailTask mLoader;
+        
         /** The parent context */
         private Context mContext;
 
@@ -489,6 +559,25 @@ public class PreferencesActivity extends Activity implements ColorPickerDialog.O
             TypedArray a = obtainStyledAttributes(R.styleable.default_gallery);
             mGalleryItemBackground = a.getResourceId(R.styleable.default_gallery_android_galleryItemBackground, 0);
             a.recycle();
+            
+            mResIds = new int[drawables.length];
+            boolean complete = true;
+            for (int i = 0; i < drawables.length; i++)
+            {
+                mResIds[i] = pm.getDrawableField(drawables[i], field);
+                if (ThumbnailCache.get(mResIds[i]) == null) complete = false;
+            }
+            
+            if (!complete)
+            {
+                mLoader = new ThumbnailTask();
+                mLoader.execute();
+            }
+        }
+        
+        public void cancel()
+        {
+            if (mLoader != null) mLoader.cancel(false);
         }
         
         /** Returns the amount of images we have defined. */
@@ -500,12 +589,56 @@ public class PreferencesActivity extends Activity implements ColorPickerDialog.O
 
         public View getView(int position, View convertView, ViewGroup parent)
         {
-            ImageView i = new ImageView(mContext);
-            i.setImageResource(pm.getDrawableField(mDrawables[position], mField));
-            i.setLayoutParams(new Gallery.LayoutParams(mWidth, mHeight));
-            i.setScaleType(mScaleType);
-            i.setBackgroundResource(mGalleryItemBackground);
+            ImageView i = (ImageView) convertView;
+            if (i == null)
+            {
+                i = new ImageView(mContext);
+                i.setLayoutParams(new Gallery.LayoutParams(mWidth, mHeight));
+                
+                // thumbnails are already the size of the item
+                i.setScaleType(ScaleType.CENTER);
+                i.setBackgroundResource(mGalleryItemBackground);
+            }
+            
+            // empty until rendered
+            i.setImageBitmap(ThumbnailCache.get(mResIds[position]));
             return i;
         }
+        
+        /**
+         * Renders the thumbnails not already cached
+         */
+        class ThumbnailTask extends AsyncTask<Void, Void, Void>
+        {
+            @Override
+            protected Void doInBackground(Void... params)
+            {
+                Resources res = getResources();
+                boolean fit = mScaleType == ScaleType.FIT_CENTER;
+                
+                for (int id : mResIds)
+                {
+                    if (isCancelled()) break;
+                    if (id == -1 || ThumbnailCache.get(id) != null) continue;
+                    
+                    Bitmap b = ThumbnailCache.render(res, id, mWidth, mHeight, fit);
+                    ThumbnailCache.put(id, b);
+                    publishProgress();
+                }
+                return null;
+            }
+            
+            @Override
+            protected void onProgressUpdate(Void... values)
+            {
+                notifyDataSetChanged();
+            }
+            
+            @Override
+            protected void onPostExecute(Void result)
+            {
+                mLoader = null;
+            }
+        }
     }
 }
@@ -18,34 +18,21 @@
 package org.chrisbailey.todo.activities;
 
 import java.util.ArrayList;
-import java.util.List;
+import java.util.HashMap;
+import java.util.HashSet;
 
-import org.chrisbailey.todo.ToDoWidget2x4;
-import org.chrisbailey.todo.ToDoWidget2x3;
 import org.chrisbailey.todo.R;
-import org.chrisbailey.todo.ToDoWidget2x1;
-import org.chrisbailey.todo.ToDoWidget1x1;
-import org.chrisbailey.todo.ToDoWidget1x2;
-import org.chrisbailey.todo.ToDoWidget1x3;
-import org.chrisbailey.todo.ToDoWidget1x4;
-import org.chrisbailey.todo.ToDoWidget3x1;
-import org.chrisbailey.todo.ToDoWidget3x2;
-import org.chrisbailey.todo.ToDoWidget3x3;
-import org.chrisbailey.todo.ToDoWidget3x4;
-import org.chrisbailey.todo.ToDoWidget4x1;
-import org.chrisbailey.todo.ToDoWidget4x2;
-import org.chrisbailey.todo.ToDoWidget4x3;
-import org.chrisbailey.todo.ToDoWidget4x4;
-import org.chrisbailey.todo.ToDoWidget2x2;
+import org.chrisbailey.todo.WidgetSizes;
 
 import android.app.Activity;
 import android.app.AlertDialog;
 import android.appwidget.AppWidgetManager;
-import android.appwidget.AppWidgetProvider;
-import android.appwidget.AppWidgetProviderInfo;
 import android.content.ComponentName;
 import android.content.DialogInterface;
+import android.content.pm.ActivityInfo;
+import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.View;
@@ -63,6 +50,9 @@ public class SizesConfiguration extends Activity implements View.OnClickListener
 	
 	ArrayList <Widget> widgetList = new ArrayList<Widget>();
 	
+	// state of each of our providers, read once when the screen opens
+	HashMap<ComponentName, ProviderState> providerStates = new HashMap<ComponentName, ProviderState>();
+	
     /** Called when the activity is first created. */
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -75,22 +65,17 @@ public class SizesConfiguration extends Activity implements View.OnClickListener
         LinearLayout layout = (LinearLayout)findViewById(R.id.widgetListLayout);
 
         // add our widgets dynamically
-        addWidget(layout, ToDoWidget1x1.class, R.string.app_name_1x1);
-        addWidget(layout, ToDoWidget1x2.class, R.string.app_name_1x2);
-        addWidget(layout, ToDoWidget1x3.class, R.string.app_name_1x3);
-        addWidget(layout, ToDoWidget1x4.class, R.string.app_name_1x4);
-        addWidget(layout, ToDoWidget2x1.class, R.string.app_name_2x1);
-        addWidget(layout, ToDoWidget2x2.class, R.string.app_name_2x2);
-        addWidget(layout, ToDoWidget2x3.class, R.string.app_name_2x3);
-        addWidget(layout, ToDoWidget2x4.class, R.string.app_name_2x4);
-        addWidget(layout, ToDoWidget3x1.class, R.string.app_name_3x1);
-        addWidget(layout, ToDoWidget3x2.class, R.string.app_name_3x2);
-        addWidget(layout, ToDoWidget3x3.class, R.string.app_name_3x3);
-        addWidget(layout, ToDoWidget3x4.class, R.string.app_name_3x4);
-        addWidget(layout, ToDoWidget4x1.class, R.string.app_name_4x1);
-        addWidget(layout, ToDoWidget4x2.class, R.string.app_name_4x2);
-        addWidget(layout, ToDoWidget4x3.class, R.string.app_name_4x3);
-        addWidget(layout, ToDoWidget4x4.class, R.string.app_name_4x4);
+        for (WidgetSizes.Size size : WidgetSizes.getAll(this))
+        {
+        	widgetList.add(new Widget(size, this));
+        }
+        
+        scanProviders();
+        for (Widget w : widgetList)
+        {
+        	w.bind(providerStates.get(w.componentName));
+        	layout.addView(w.cb);
+        }
 
         // add click listener to save button
         
@@ -106,37 +91,67 @@ public class SizesConfiguration extends Activity implements View.OnClickListener
 		});
     }
     
-    private void addWidget(LinearLayout layout, Class<? extends AppWidgetProvider> c, int res)
-    {
-    	Widget w = new Widget(c, this, res);
-        layout.addView(w.cb);
-        widgetList.add(w);
-    }
-    
-    public boolean amIEnabled(ComponentName name)
+    /**
+     * Reads the enabled state and instance count of all our providers. The
+     * enabled state of every receiver comes from a single package query,
+     * which includes any setting made on this screen, and instances are only
+     * counted for providers that are enabled, as the others can't have any.
+     */
+    private void scanProviders()
     {
-	        AppWidgetManager mgnr = AppWidgetManager.getInstance(this.getApplicationContext());
-
-		    List<AppWidgetProviderInfo> list = mgnr.getInstalledProviders();
-		    int state  = pm.getComponentEnabledSetting(name);
-		    if (state != PackageManager.COMPONENT_ENABLED_STATE_DEFAULT)
-		    {
-		    	return state == PackageManager.COMPONENT_ENABLED_STATE_ENABLED;
-		    }
-	        for(AppWidgetProviderInfo i : list)
-	        {
-	        	if (i.toString().contains(name.getClassName())) return true;
-	        }
-
-    	return false;
+    	AppWidgetManager mgnr = AppWidgetManager.getInstance(this.getApplicationContext());
+    	
+    	HashSet<String> enabled = new HashSet<String>();
+    	try
+    	{
+    		PackageInfo info = pm.getPackageInfo(getPackageName(), PackageManager.GET_RECEIVERS | PackageManager.GET_DISABLED_COMPONENTS);
+    		if (info.receivers != null)
+    		{
+    			for (ActivityInfo r : info.receivers)
+    			{
+    				if (r.enabled) enabled.add(r.name);
+    			}
+    		}
+    	}
+    	catch (NameNotFoundException e)
+    	{
+    		Log.e(LOG_TAG, "Couldn't read our receivers", e);
+    	}
+    	
+    	for (Widget w : widgetList)
+    	{
+    		ProviderState s = new ProviderState();
+    		s.enabled = enabled.contains(w.componentName.getClassName());
+    		
+    		if (s.enabled) s.instances = mgnr.getAppWidgetIds(w.componentName).length;
+    		if (ToDoActivity.debug) Log.i(LOG_TAG, w.componentName.getClassName() + " has " + s.instances);
+    		
+    		providerStates.put(w.componentName, s);
+    	}
     }
     
-    public int getWidgetInstances(ComponentName name)
+    /**
+     * Applies all the checkbox changes in one pass, then records the new
+     * states so a second save doesn't repeat them
+     */
+    private void saveChanges()
     {
-    	AppWidgetManager mgnr = AppWidgetManager.getInstance(this.getApplicationContext());
-    	int [] instanceWidgets = mgnr.getAppWidgetIds(name);
-    	if (ToDoActivity.debug) Log.i(LOG_TAG, name.getClassName() + " has " + instanceWidgets.length);
-		return instanceWidgets.length;
+    	ArrayList<Widget> changed = new ArrayList<Widget>();
+    	for (Widget w : widgetList)
+    	{
+    		if (w.state != w.cb.isChecked()) changed.add(w);
+    	}
+    	if (ToDoActivity.debug) Log.i(LOG_TAG, "Changing " + changed.size() + " widget sizes");
+    	
+    	for (Widget w : changed)
+    	{
+    		if (ToDoActivity.debug) Log.i(LOG_TAG, "Setting " + w.label + " to " + w.cb.isChecked());
+    		int state = w.cb.isChecked() ? PackageManager.COMPONENT_ENABLED_STATE_ENABLED :  PackageManager.COMPONENT_ENABLED_STATE_DISABLED;
+    		toggleWidget(w.componentName, state);
+    		
+    		w.state = w.cb.isChecked();
+    		providerStates.get(w.componentName).enabled = w.state;
+    	}
     }
     
 	public void onClick(View v) {
@@ -154,15 +169,7 @@ public class SizesConfiguration extends Activity implements View.OnClickListener
 				dialog.setMessage(getResources().getString(R.string.config_save_warning_message));
 				dialog.setPositiveButton(getResources().getString(android.R.string.ok), new DialogInterface.OnClickListener() {
 			           public void onClick(DialogInterface dialog, int id) {
-			        	   for (Widget w : widgetList)
-				   			{
-			        		   if (w.state != w.cb.isChecked())
-			        		   {
-			        			   if (ToDoActivity.debug) Log.i(LOG_TAG, "Setting " + w.label + " to " + w.cb.isChecked());
-						    		int state = w.cb.isChecked() ? PackageManager.COMPONENT_ENABLED_STATE_ENABLED :  PackageManager.COMPONENT_ENABLED_STATE_DISABLED;
-						    		toggleWidget(w.componentName, state);
-			        		   }
-				   			}
+			        	   saveChanges();
 			        	   finish();
 			           }
 			       });
@@ -211,32 +218,45 @@ public class SizesConfiguration extends Activity implements View.OnClickListener
 		pm.setComponentEnabledSetting(name, state, PackageManager.DONT_KILL_APP);
 	}
 	
+	static class ProviderState
+	{
+		boolean enabled;
+		int instances = 0;
+	}
+	
 	class Widget
 	{
 		CheckBox cb;
 		boolean state;
-		Class<? extends AppWidgetProvider> widgetClass;
+		WidgetSizes.Size size;
 		ComponentName componentName;
 		String label;
 		int instances = 0;
 		
-		public Widget(Class<? extends AppWidgetProvider> c, SizesConfiguration config, int res)
+		public Widget(WidgetSizes.Size s, SizesConfiguration config)
 		{
-			widgetClass = c;
-			componentName = new ComponentName(getApplicationContext(), widgetClass);
-			label = config.getResources().getString(res);
-			state = config.amIEnabled(componentName);
-			instances = config.getWidgetInstances(componentName);
-			createCheckbox(config,res);
+			size = s;
+			componentName = s.getComponent(config);
+			label = config.getResources().getString(s.label);
+			createCheckbox(config);
 		}
 		
-		private void createCheckbox(SizesConfiguration c, int res)
+		/**
+		 * Shows the state found by {@link SizesConfiguration#scanProviders()}
+		 */
+		void bind(ProviderState s)
+		{
+			state = s.enabled;
+			instances = s.instances;
+			cb.setChecked(state);
+		}
+		
+		private void createCheckbox(SizesConfiguration c)
 		{
 			cb = new CheckBox(c);
 			cb.setText(label);
 			cb.setOnClickListener(c);
 			cb.setId(++c.ID);
-			cb.setChecked(state);
 		}
 	}
 }
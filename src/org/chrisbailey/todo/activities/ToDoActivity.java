@@ -17,13 +17,20 @@
  ******************************************************************************/
 package org.chrisbailey.todo.activities;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 
 import org.chrisbailey.todo.R;
 import org.chrisbailey.todo.ToDoWidget2x2;
 import org.chrisbailey.todo.ToDoWidget2x2.MOVE;
+import org.chrisbailey.todo.WidgetSizes;
+import org.chrisbailey.todo.db.OperationJournal;
+import org.chrisbailey.todo.db.RecoveryLog;
 import org.chrisbailey.todo.db.ToDoDatabase;
 import org.chrisbailey.todo.utils.Note;
+import org.chrisbailey.todo.utils.NoteFilter;
 import org.chrisbailey.todo.utils.PreferenceManager;
 import org.chrisbailey.todo.utils.Note.Status;
 
@@ -33,8 +40,13 @@ import android.appwidget.AppWidgetManager;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.res.ColorStateList;
+import android.content.res.Resources;
 import android.graphics.drawable.Drawable;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.text.Editable;
 import android.text.InputType;
 import android.text.TextWatcher;
@@ -44,13 +56,19 @@ import android.view.KeyEvent;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
+import android.view.MotionEvent;
 import android.view.View;
+import android.view.ViewGroup;
+import android.view.ViewTreeObserver;
 import android.view.Window;
 import android.view.inputmethod.InputMethodManager;
+import android.widget.AbsListView;
+import android.widget.BaseAdapter;
 import android.widget.EditText;
 import android.widget.ImageView;
-import android.widget.TableLayout;
-import android.widget.TableRow;
+import android.widget.LinearLayout;
+import android.widget.ListView;
+import android.widget.Toast;
 import android.widget.ImageView.ScaleType;
 
 public class ToDoActivity extends Activity
@@ -64,6 +82,58 @@ public class ToDoActivity extends Activity
     private PreferenceManager pm;
     
     EditText title;
+    ListView list;
+    NoteAdapter adapter;
+    
+    // the notes being edited, in list order
+    ArrayList<Note> notes = new ArrayList<Note>();
+    
+    // the notes currently shown, and the field to narrow them down
+    final NoteFilter filter = new NoteFilter(notes);
+    EditText filterText;
+    
+    // number of notes loaded before the list is first shown
+    private static final int FIRST_SCREEN_NOTES = 20;
+    
+    // set while the notes are still being loaded
+    LoadTask loader;
+    MoveTargetsTask moveTargets;
+    
+    // undo & redo history of this list
+    OperationJournal journal;
+    ImageView undoButton;
+    
+    // ids of the selected notes, null unless in selection mode
+    HashSet<Integer> selected;
+    View editBar;
+    View selectionBar;
+    
+    // the note being dragged by its handle, its state before the drag and
+    // where it started
+    Note dragNote;
+    Note dragBefore;
+    int dragFrom;
+    
+    // note edits not yet written to the database, by note id
+    final HashMap<Integer,String> pendingEdits = new HashMap<Integer,String>();
+    RecoveryLog recoveryLog;
+    final Handler handler = new Handler();
+    
+    // how long typing has to pause before edits are written to the database
+    private static final int COMMIT_DELAY = 1000;
+    
+    private final Runnable commitRunnable = new Runnable()
+    {
+        public void run()
+        {
+            commitEdits();
+        }
+    };
+    
+    // for startup timing
+    long createTime;
+    
+    final RowTheme rowTheme = new RowTheme();
     
     public static enum FOCUS { GIVE_TO_LAST, GIVE_TO_LAST_WITH_KEYBOARD, NONE };
     
@@ -79,6 +149,8 @@ public class ToDoActivity extends Activity
     {
         if (debug) Log.d(LOG_TAG, "onCreate");
         
+        createTime = SystemClock.uptimeMillis();
+        
         super.onCreate(savedInstanceState);
         
         scale = getResources().getDisplayMetrics().density;
@@ -88,17 +160,62 @@ public class ToDoActivity extends Activity
         setContentView(R.layout.activity);
         
         db = new ToDoDatabase(this.getApplicationContext());
+        recoveryLog = new RecoveryLog(this.getApplicationContext());
 
-        pm = new PreferenceManager(this, db);
-        
         ImageView addnote = (ImageView)findViewById(R.id.addnotebutton);
         addnote.setOnClickListener(new View.OnClickListener()
         {
             public void onClick(View v)
             {
+                // ignore until the existing notes have been loaded
+                if (loader != null) return;
+                
+                commitEdits();
                 Note n = new Note(mAppWidgetId);
                 db.addNote(n);
-                redraw(ToDoActivity.this, FOCUS.GIVE_TO_LAST_WITH_KEYBOARD);
+                journal.record(OperationJournal.ADD, new Note[0], new Note[] { n.copy() });
+                appendNote(n, FOCUS.GIVE_TO_LAST_WITH_KEYBOARD);
+                updateUndoState();
+            }
+        });
+        
+        undoButton = (ImageView)findViewById(R.id.undobutton);
+        undoButton.setOnClickListener(new View.OnClickListener()
+        {
+            public void onClick(View v)
+            {
+                undo();
+            }
+        });
+
+        editBar = findViewById(R.id.edit_bar);
+        selectionBar = findViewById(R.id.selection_bar);
+        findViewById(R.id.selection_cancel).setOnClickListener(new View.OnClickListener()
+        {
+            public void onClick(View v)
+            {
+                endSelection();
+            }
+        });
+        findViewById(R.id.selection_delete).setOnClickListener(new View.OnClickListener()
+        {
+            public void onClick(View v)
+            {
+                deleteSelected();
+            }
+        });
+        findViewById(R.id.selection_toggle).setOnClickListener(new View.OnClickListener()
+        {
+            public void onClick(View v)
+            {
+                toggleSelected();
+            }
+        });
+        findViewById(R.id.selection_move).setOnClickListener(new View.OnClickListener()
+        {
+            public void onClick(View v)
+            {
+                chooseMoveTarget();
             }
         });
 
@@ -127,13 +244,118 @@ public class ToDoActivity extends Activity
             finish();
         }
         
+        adapter = new NoteAdapter();
+        list = (ListView) findViewById(R.id.note_list);
+        list.setItemsCanFocus(true);
+        list.setAdapter(adapter);
+        
         title = (EditText)findViewById(R.id.edittitle);
         title.setId(mAppWidgetId);
-        title.setText(db.getTitle(mAppWidgetId));
-        title.addTextChangedListener(new MyTitleTextWatcher(title));
         title.setBackgroundResource(R.drawable.input_background);
         
-        redraw(this, FOCUS.GIVE_TO_LAST);
+        filterText = (EditText)findViewById(R.id.filter);
+        filterText.addTextChangedListener(new FilterTextWatcher());
+        
+        // log when the empty dialog is first drawn
+        final View decor = getWindow().getDecorView();
+        decor.getViewTreeObserver().addOnPreDrawListener(new ViewTreeObserver.OnPreDrawListener()
+        {
+            public boolean onPreDraw()
+            {
+                decor.getViewTreeObserver().removeOnPreDrawListener(this);
+                if (debug) Log.i(LOG_TAG, "Time to first frame: " + (SystemClock.uptimeMillis() - createTime) + "ms");
+                return true;
+            }
+        });
+        
+        // everything else comes from the database, so load it off the ui thread
+        loader = new LoadTask();
+        loader.execute();
+    }
+    
+    /**
+     * Loads the title, preferences and notes in the background. The first
+     * screen of notes is shown as soon as it's read, the rest follow.
+     * 
+     * The task has its own database connection, which it closes when it's
+     * done. Cancelling doesn't stop a running task, so it mustn't use the
+     * activity's connection, which is closed as soon as the editor is left.
+     */
+    class LoadTask extends AsyncTask<Void, LinkedList<Note>, Void>
+    {
+        final ToDoDatabase loadDb = new ToDoDatabase(getApplicationContext());
+        final ToDoDatabase editorDb = db;
+        final int list = mAppWidgetId;
+        
+        String loadedTitle;
+        PreferenceManager loadedPm;
+        OperationJournal loadedJournal;
+        
+        @Override
+        protected Void doInBackground(Void... params)
+        {
+            try
+            {
+                // bring back anything typed before the last run was killed
+                int recovered = recoveryLog.replay(loadDb);
+                if (debug && recovered > 0) Log.i(LOG_TAG, "Recovered unsaved edits to " + recovered + " notes");
+                if (isCancelled()) return null;
+                
+                loadedTitle = loadDb.getTitle(list);
+                loadedPm = new PreferenceManager(getApplicationContext(), loadDb, list);
+                loadedJournal = new OperationJournal(editorDb, loadDb, list);
+                
+                LinkedList<Note> first = loadDb.getNotes(list, 0, FIRST_SCREEN_NOTES);
+                publishProgress(first);
+                
+                if (first.size() == FIRST_SCREEN_NOTES && !isCancelled())
+                {
+                    publishProgress(loadDb.getNotes(list, FIRST_SCREEN_NOTES, -1));
+                }
+            }
+            finally
+            {
+                loadDb.close();
+            }
+            return null;
+        }
+        
+        @Override
+        protected void onProgressUpdate(LinkedList<Note>... values)
+        {
+            // the editor was left while this was in flight
+            if (isCancelled()) return;
+            
+            if (pm == null)
+            {
+                // first chunk, also bring in the title & theme
+                pm = loadedPm;
+                rowTheme.update(pm);
+                journal = loadedJournal;
+                updateUndoState();
+                title.setText(loadedTitle);
+                title.addTextChangedListener(new MyTitleTextWatcher(title));
+                title.setTextColor(pm.getActiveColor());
+            }
+            notes.addAll(values[0]);
+            notesChanged();
+        }
+        
+        @Override
+        protected void onPostExecute(Void result)
+        {
+            loader = null;
+            
+            if (notes.size() == 0)
+            {
+                Note n = new Note(mAppWidgetId);
+                db.addNote(n);
+                appendNote(n, FOCUS.GIVE_TO_LAST_WITH_KEYBOARD);
+            }
+            else focusLast(FOCUS.GIVE_TO_LAST);
+            
+            if (debug) Log.i(LOG_TAG, "Time to interactive: " + (SystemClock.uptimeMillis() - createTime) + "ms for " + notes.size() + " notes");
+        }
     }
     
     @Override
@@ -143,12 +365,33 @@ public class ToDoActivity extends Activity
         return true;
     }
     
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu)
+    {
+        menu.findItem(R.id.menu_undo).setEnabled(journal != null && journal.canUndo());
+        menu.findItem(R.id.menu_redo).setEnabled(journal != null && journal.canRedo());
+        return super.onPrepareOptionsMenu(menu);
+    }
+    
     public boolean onOptionsItemSelected(MenuItem item)
     {
         switch (item.getItemId())
         {
+            case R.id.menu_undo:
+                undo();
+                return true;
+            case R.id.menu_redo:
+                redo();
+                return true;
+            case R.id.menu_clear_finished:
+                clearFinished();
+                return true;
+            case R.id.menu_mark_all_done:
+                markAllDone();
+                return true;
             case R.id.menu_configure:
                 Intent intent = new Intent(ToDoActivity.this, PreferencesActivity.class);
+                intent.putExtra(AppWidgetManager.EXTRA_APPWIDGET_ID, mAppWidgetId);
                 ToDoActivity.this.startActivityForResult(intent, 0);
                 return true;
         }
@@ -159,118 +402,761 @@ public class ToDoActivity extends Activity
     @Override
     public boolean onKeyDown(int keyCode, KeyEvent event) {
         if ((keyCode == KeyEvent.KEYCODE_BACK)) {
-            done();
+            if (selected != null) endSelection();
+            else done();
             return true;
         }
         return super.onKeyDown(keyCode, event);
     }
     
+    @Override
+    protected void onDestroy()
+    {
+        super.onDestroy();
+        
+        // finished by the system rather than through done()
+        if (loader != null)
+        {
+            loader.cancel(false);
+            loader = null;
+        }
+        if (moveTargets != null)
+        {
+            moveTargets.cancel(false);
+            moveTargets = null;
+        }
+        if (db != null)
+        {
+            recoveryLog.close();
+            db.close();
+            db = null;
+        }
+    }
+    
+    @Override
+    protected void onPause()
+    {
+        super.onPause();
+        
+        commitEdits();
+        
+        // save the undo history in one go
+        if (journal != null && db != null) journal.flush();
+    }
+    
+    private void undo()
+    {
+        commitEdits();
+        if (journal == null) return;
+        OperationJournal.Operation op = journal.undo();
+        if (op == null) return;
+        applyToModel(op.after, readBack(op.before));
+        
+        // the notes have gone back to their own list, refresh the one they left
+        if (op.type == OperationJournal.MOVE) refreshWidget(op.after[0].list);
+    }
+    
+    private void redo()
+    {
+        commitEdits();
+        if (journal == null) return;
+        OperationJournal.Operation op = journal.redo();
+        if (op == null) return;
+        applyToModel(op.before, readBack(op.after));
+        if (op.type == OperationJournal.MOVE) refreshWidget(op.after[0].list);
+    }
+    
+    /**
+     * Reads back the notes an undo or redo wrote. Only the columns the step
+     * changed were written, so the rest may differ from the journal's copy.
+     */
+    private Note[] readBack(Note[] written)
+    {
+        ArrayList<Note> current = new ArrayList<Note>(written.length);
+        for (Note n : written)
+        {
+            Note c = db.getNote(n.id);
+            if (c != null) current.add(c);
+        }
+        return current.toArray(new Note[current.size()]);
+    }
+    
+    /**
+     * Deletes every finished note with a single statement
+     */
+    private void clearFinished()
+    {
+        commitEdits();
+        if (loader != null) return;
+        
+        ArrayList<Note> finished = new ArrayList<Note>();
+        for (Note n : notes)
+        {
+            if (n.status == Status.FINISHED) finished.add(n.copy());
+        }
+        if (finished.isEmpty()) return;
+        
+        Note[] before = finished.toArray(new Note[finished.size()]);
+        db.deleteFinished(mAppWidgetId);
+        journal.record(OperationJournal.DELETE, before, new Note[0]);
+        applyToModel(before, new Note[0]);
+        refreshWidget();
+    }
+    
+    /**
+     * Marks every note as finished with a single statement
+     */
+    private void markAllDone()
+    {
+        commitEdits();
+        if (loader != null) return;
+        
+        ArrayList<Note> active = new ArrayList<Note>();
+        for (Note n : notes)
+        {
+            if (n.status != Status.FINISHED) active.add(n.copy());
+        }
+        if (active.isEmpty()) return;
+        
+        Note[] before = active.toArray(new Note[active.size()]);
+        Note[] after = new Note[before.length];
+        for (int i = 0; i < before.length; i++)
+        {
+            after[i] = before[i].copy();
+            after[i].status = Status.FINISHED;
+        }
+        db.setAllStatus(mAppWidgetId, Status.FINISHED);
+        journal.record(OperationJournal.STATUS, before, after);
+        applyToModel(before, after);
+        refreshWidget();
+    }
+    
+    private void refreshWidget()
+    {
+        refreshWidget(mAppWidgetId);
+    }
+    
+    private void refreshWidget(int widgetId)
+    {
+        AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(getApplicationContext());
+        ToDoWidget2x2.updateAppWidget(getApplicationContext(), appWidgetManager, widgetId, MOVE.NONE);
+    }
+    
+    /**
+     * Enters selection mode, starting with the given note selected
+     */
+    private void startSelection(Note n)
+    {
+        if (loader != null || selected != null) return;
+        
+        selected = new HashSet<Integer>();
+        selected.add(n.id);
+        if (getCurrentFocus() != null) getCurrentFocus().clearFocus();
+        editBar.setVisibility(View.GONE);
+        selectionBar.setVisibility(View.VISIBLE);
+        adapter.notifyDataSetChanged();
+    }
+    
+    private void endSelection()
+    {
+        selected = null;
+        selectionBar.setVisibility(View.GONE);
+        editBar.setVisibility(View.VISIBLE);
+        adapter.notifyDataSetChanged();
+    }
+    
+    private void toggleSelection(ViewGroup row, Note n)
+    {
+        if (!selected.remove(n.id)) selected.add(n.id);
+        
+        if (selected.isEmpty()) endSelection();
+        else selectRow(row, true);
+    }
+    
+    private void selectRow(ViewGroup row, boolean b)
+    {
+        RowHolder holder = (RowHolder) row.getTag();
+        boolean highlight = holder.note == dragNote || (b && selected.contains(holder.note.id));
+        row.setBackgroundColor(highlight ? rowTheme.selectedColor : 0);
+    }
+    
+    /**
+     * Copies of the selected notes, in list order
+     */
+    private Note[] getSelectedNotes()
+    {
+        ArrayList<Note> result = new ArrayList<Note>(selected.size());
+        for (Note n : notes)
+        {
+            if (selected.contains(n.id)) result.add(n.copy());
+        }
+        return result.toArray(new Note[result.size()]);
+    }
+    
+    private static int[] getIds(Note[] notes)
+    {
+        int[] ids = new int[notes.length];
+        for (int i = 0; i < notes.length; i++) ids[i] = notes[i].id;
+        return ids;
+    }
+    
+    /**
+     * Deletes the selected notes with a single statement
+     */
+    private void deleteSelected()
+    {
+        commitEdits();
+        Note[] before = getSelectedNotes();
+        endSelection();
+        if (before.length == 0) return;
+        
+        db.deleteNotes(getIds(before));
+        journal.record(OperationJournal.DELETE, before, new Note[0]);
+        applyToModel(before, new Note[0]);
+        refreshWidget();
+        
+        Toast.makeText(this, getString(R.string.notes_deleted).replace("[num]", before.length+""), Toast.LENGTH_SHORT).show();
+    }
+    
+    /**
+     * Marks the selected notes as finished, or as active if they all already
+     * are finished, with a single statement
+     */
+    private void toggleSelected()
+    {
+        commitEdits();
+        Note[] before = getSelectedNotes();
+        endSelection();
+        if (before.length == 0) return;
+        
+        Status status = Status.CREATED;
+        for (Note n : before)
+        {
+            if (n.status != Status.FINISHED) status = Status.FINISHED;
+        }
+        
+        Note[] after = new Note[before.length];
+        for (int i = 0; i < before.length; i++)
+        {
+            after[i] = before[i].copy();
+            after[i].status = status;
+        }
+        db.setStatus(getIds(before), status);
+        journal.record(OperationJournal.STATUS, before, after);
+        applyToModel(before, after);
+        refreshWidget();
+    }
+    
+    /**
+     * Asks which list the selected notes should be moved to, once the other
+     * lists have been found in the background
+     */
+    private void chooseMoveTarget()
+    {
+        if (moveTargets != null) return;
+        moveTargets = new MoveTargetsTask();
+        moveTargets.execute();
+    }
+    
+    /**
+     * Finds every other widget's list, including empty ones, with its
+     * title. Like {@link LoadTask} it has its own database connection, as
+     * the editor's may be closed before it finishes.
+     */
+    class MoveTargetsTask extends AsyncTask<Void, Void, Void>
+    {
+        final ToDoDatabase targetsDb = new ToDoDatabase(getApplicationContext());
+        final int list = mAppWidgetId;
+        
+        final ArrayList<Integer> lists = new ArrayList<Integer>();
+        final ArrayList<String> names = new ArrayList<String>();
+        
+        @Override
+        protected Void doInBackground(Void... params)
+        {
+            try
+            {
+                Context c = getApplicationContext();
+                for (int id : WidgetSizes.getAllWidgetIds(c, AppWidgetManager.getInstance(c)))
+                {
+                    if (id == list) continue;
+                    
+                    String name = targetsDb.getTitle(id);
+                    if (name.length() == 0) name = getString(R.string.untitled_list).replace("[id]", id+"");
+                    lists.add(id);
+                    names.add(name);
+                }
+            }
+            finally
+            {
+                targetsDb.close();
+            }
+            return null;
+        }
+        
+        @Override
+        protected void onPostExecute(Void result)
+        {
+            moveTargets = null;
+            
+            // the selection was ended while this was in flight
+            if (isCancelled() || selected == null) return;
+            
+            if (lists.isEmpty())
+            {
+                Toast.makeText(ToDoActivity.this, R.string.move_no_lists, Toast.LENGTH_SHORT).show();
+                return;
+            }
+            
+            AlertDialog.Builder dialog = new AlertDialog.Builder(ToDoActivity.this);
+            dialog.setTitle(R.string.move_to_title);
+            dialog.setItems(names.toArray(new String[names.size()]), new DialogInterface.OnClickListener()
+            {
+                public void onClick(DialogInterface d, int which)
+                {
+                    moveSelected(lists.get(which));
+                }
+            });
+            dialog.show();
+        }
+    }
+    
+    /**
+     * Moves the selected notes to another list with a single statement,
+     * refreshing each of the two widgets once
+     */
+    private void moveSelected(int list)
+    {
+        commitEdits();
+        if (selected == null) return;
+        Note[] before = getSelectedNotes();
+        endSelection();
+        if (before.length == 0) return;
+        
+        Note[] after = new Note[before.length];
+        for (int i = 0; i < before.length; i++)
+        {
+            after[i] = before[i].copy();
+            after[i].list = list;
+        }
+        db.moveNotes(getIds(before), list);
+        journal.record(OperationJournal.MOVE, before, after);
+        applyToModel(before, after);
+        refreshWidget();
+        refreshWidget(list);
+        
+        Toast.makeText(this, getString(R.string.notes_moved).replace("[num]", before.length+""), Toast.LENGTH_SHORT).show();
+    }
+    
+    /**
+     * Brings the in-memory notes in line with an operation, changing only
+     * the notes it touched
+     * @param from the notes as they were
+     * @param to the notes as they are now
+     */
+    private void applyToModel(Note[] from, Note[] to)
+    {
+        for (Note f : from)
+        {
+            Note m = findNote(f.id);
+            if (m != null) notes.remove(m);
+        }
+        for (Note t : to)
+        {
+            if (t.list != mAppWidgetId) continue;
+            
+            // keep the list in order, as it's read from the database
+            int i = 0;
+            while (i < notes.size() && isBefore(notes.get(i), t)) i++;
+            notes.add(i, t.copy());
+        }
+        
+        // always leave an empty note to type into
+        if (notes.size() == 0)
+        {
+            Note empty = new Note(mAppWidgetId);
+            db.addNote(empty);
+            notes.add(empty);
+        }
+        notesChanged();
+        updateUndoState();
+    }
+    
+    /**
+     * Writes any pending note edits to the database in one transaction and
+     * empties the recovery log. Called before anything else reads or writes
+     * the notes.
+     */
+    private void commitEdits()
+    {
+        handler.removeCallbacks(commitRunnable);
+        if (pendingEdits.isEmpty() || db == null) return;
+        
+        boolean saved = db.batch(new ToDoDatabase.Batch()
+        {
+            public void run(ToDoDatabase db)
+            {
+                for (Integer id : pendingEdits.keySet())
+                {
+                    db.updateText(id, pendingEdits.get(id));
+                }
+            }
+        });
+        
+        // on failure keep the edits, and the log, for the next commit to
+        // retry, the log is only cleared once they have all been written
+        if (!saved) return;
+        
+        pendingEdits.clear();
+        recoveryLog.clear();
+    }
+    
+    private static boolean isBefore(Note a, Note b)
+    {
+        return a.position < b.position || (a.position == b.position && a.id < b.id);
+    }
+    
+    /**
+     * Moves the dragged note in the model to the row under the finger. Only
+     * the rows on screen are rebound, nothing is written until the drop.
+     * @param rawY screen position of the finger
+     */
+    private void dragTo(int rawY)
+    {
+        int[] origin = new int[2];
+        list.getLocationOnScreen(origin);
+        int y = rawY - origin[1];
+        
+        int to = list.pointToPosition(list.getWidth() / 2, y);
+        if (y < 0)
+        {
+            // dragged above the list, scroll it down a row
+            to = Math.max(list.getFirstVisiblePosition() - 1, 0);
+            list.setSelection(to);
+        }
+        else if (y >= list.getHeight())
+        {
+            to = Math.min(list.getLastVisiblePosition() + 1, notes.size() - 1);
+            list.setSelection(to);
+        }
+        if (to == ListView.INVALID_POSITION) return;
+        
+        int from = notes.indexOf(dragNote);
+        if (to == from) return;
+        
+        notes.remove(from);
+        notes.add(to, dragNote);
+        notesChanged();
+    }
+    
+    /**
+     * Drops the dragged note, giving it a position between its new neighbours
+     * so that it's the only note written
+     */
+    private void drop()
+    {
+        Note n = dragNote;
+        dragNote = null;
+        
+        int i = notes.indexOf(n);
+        if (i != dragFrom)
+        {
+            Note prev = i > 0 ? notes.get(i - 1) : null;
+            Note next = i < notes.size() - 1 ? notes.get(i + 1) : null;
+            
+            double position = positionBetween(prev, next);
+            if ((prev != null && position <= prev.position) || (next != null && position >= next.position))
+            {
+                // no room left between them, spread the whole list out again
+                // in the order on screen, which has the note in its new place
+                Note[] before = new Note[notes.size()];
+                Note[] after = new Note[notes.size()];
+                int[] ids = new int[notes.size()];
+                for (int k = 0; k < before.length; k++)
+                {
+                    Note m = notes.get(k);
+                    before[k] = m == n ? dragBefore : m.copy();
+                    m.position = k + 1;
+                    after[k] = m.copy();
+                    ids[k] = m.id;
+                }
+                db.renumberPositions(mAppWidgetId, ids);
+                journal.record(OperationJournal.REORDER, before, after);
+            }
+            else
+            {
+                n.position = position;
+                db.setPosition(n.id, position);
+                journal.record(OperationJournal.REORDER, new Note[] { dragBefore }, new Note[] { n.copy() });
+            }
+            updateUndoState();
+        }
+        dragBefore = null;
+        adapter.notifyDataSetChanged();
+    }
+    
+    private static double positionBetween(Note prev, Note next)
+    {
+        if (prev != null && next != null) return (prev.position + next.position) / 2;
+        if (prev != null) return prev.position + 1;
+        if (next != null) return next.position - 1;
+        return 0;
+    }
+    
+    private void updateUndoState()
+    {
+        undoButton.setVisibility(journal != null && journal.canUndo() ? View.VISIBLE : View.GONE);
+    }
+    
     private void done()
     {
+        if (loader != null)
+        {
+            loader.cancel(false);
+            loader = null;
+        }
+        if (moveTargets != null)
+        {
+            moveTargets.cancel(false);
+            moveTargets = null;
+        }
+        
         if (db != null)
         {
+            commitEdits();
+            recoveryLog.close();
+            if (journal != null) journal.flush();
             db.close();
             db = null;
         }
 
         if (debug) Log.i(LOG_TAG, "Sending intents to widget #" + mAppWidgetId);
         
-        AppWidgetManager appWidgetManager = AppWidgetManager.getInstance(getApplicationContext());
-        ToDoWidget2x2.updateAppWidget(getApplicationContext(), appWidgetManager, mAppWidgetId, MOVE.NONE);
+        refreshWidget();
         setConfigureResult(RESULT_OK);
         finish();
     }
     
-    private TableRow addNote(Note n, ToDoActivity c)
+    /**
+     * Creates the views for a row. Rows are recycled by the list, so nothing
+     * note specific is set here, see {@link NoteAdapter#bind}.
+     */
+    private LinearLayout createNoteRow(ToDoActivity c)
     {
-        TableRow row = createRow(c);
-        
-        int btn = pm.getActiveIcon();
-        ImageView toggle = createImage(c, getResources().getDrawable(btn));
-        toggle.setId(n.id);
-        toggle.setOnClickListener(new StatusClickListener(c));
+        LinearLayout row = createRow(c);
+        RowHolder holder = new RowHolder();
         
-        row.addView(toggle);
+        holder.toggle = createImage(c, null);
+        holder.toggle.setOnClickListener(new StatusClickListener(c));
+        holder.toggle.setOnLongClickListener(new View.OnLongClickListener()
+        {
+            public boolean onLongClick(View v)
+            {
+                RowHolder h = (RowHolder) ((View) v.getParent()).getTag();
+                if (h.note == null) return false;
+                startSelection(h.note);
+                return true;
+            }
+        });
+        row.addView(holder.toggle);
         
-        EditText note = createInput(c);
-        note.setPadding(0, 0, 0, 0);
-        note.setBackgroundResource(R.drawable.input_background);
-        note.setText(n.text);
-        note.setId(n.id);
-        note.addTextChangedListener(new MyTextWatcher(note));
-        row.addView(note);
+        holder.text = createInput(c);
+        holder.text.setPadding(0, 0, 0, 0);
+        holder.text.setBackgroundResource(R.drawable.input_background);
+        holder.watcher = new MyTextWatcher(holder.text);
+        holder.text.addTextChangedListener(holder.watcher);
+        holder.text.setOnFocusChangeListener(new View.OnFocusChangeListener()
+        {
+            public void onFocusChange(View v, boolean hasFocus)
+            {
+                RowHolder h = (RowHolder) ((View) v.getParent()).getTag();
+                if (hasFocus && h.note != null) adapter.focusNoteId = h.note.id;
+            }
+        });
+        row.addView(holder.text);
 
-        ImageView delete = createImage(c, getResources().getDrawable(R.drawable.action_delete));
-        delete.setId(n.id);
-        delete.setOnClickListener(new DeleteClickListener(c));
-        row.addView(delete);
+        holder.delete = createImage(c, rowTheme.deleteIcon);
+        holder.delete.setOnClickListener(new DeleteClickListener(c));
+        row.addView(holder.delete);
         
-        toggleRow(row, n.status);
+        holder.handle = createImage(c, rowTheme.dragIcon);
+        holder.handle.setOnTouchListener(new DragTouchListener());
+        row.addView(holder.handle);
         
+        row.setTag(holder);
         return row;
     }
     
-    public void toggleRow(TableRow row, Note.Status status)
+    public void toggleRow(ViewGroup row, Note.Status status)
     {
-        int btn = pm.getActiveIcon();
-        if (status == Status.FINISHED) btn = pm.getFinishedIcon();
+        boolean finished = status == Status.FINISHED;
         
         ImageView toggle = (ImageView) row.getChildAt(0);
-        toggle.setImageDrawable(getResources().getDrawable(btn));
+        toggle.setImageDrawable(finished ? rowTheme.finishedIcon : rowTheme.activeIcon);
         
         EditText note = (EditText) row.getChildAt(1);
-        if (status == Note.Status.FINISHED) note.setTextColor(pm.getFinishedColor());
-        else note.setTextColor(pm.getActiveColor());
+        note.setTextColor(finished ? rowTheme.finishedColor : rowTheme.activeColor);
+    }
+    
+    /**
+     * The drawables & colours shared by every row, so that binding and
+     * toggling rows doesn't create new ones. Rebuilt when the theme changes.
+     */
+    class RowTheme
+    {
+        Drawable activeIcon;
+        Drawable finishedIcon;
+        Drawable deleteIcon;
+        Drawable dragIcon;
+        ColorStateList activeColor;
+        ColorStateList finishedColor;
+        int selectedColor;
+        
+        // the preferences the cache was built from
+        private int icon = -1;
+        private int active;
+        private int finished;
+        
+        void update(PreferenceManager pm)
+        {
+            Resources res = getResources();
+            
+            if (deleteIcon == null)
+            {
+                deleteIcon = res.getDrawable(R.drawable.action_delete);
+                dragIcon = res.getDrawable(android.R.drawable.ic_menu_sort_by_size);
+                selectedColor = res.getColor(R.color.selected_row);
+            }
+            
+            if (pm.getIconId() != icon)
+            {
+                icon = pm.getIconId();
+                activeIcon = res.getDrawable(pm.getActiveIcon());
+                finishedIcon = res.getDrawable(pm.getFinishedIcon());
+            }
+            if (activeColor == null || pm.getActiveColor() != active)
+            {
+                active = pm.getActiveColor();
+                activeColor = ColorStateList.valueOf(active);
+            }
+            if (finishedColor == null || pm.getFinishedColor() != finished)
+            {
+                finished = pm.getFinishedColor();
+                finishedColor = ColorStateList.valueOf(finished);
+            }
+        }
     }
     
+    /**
+     * Reloads every note from the database. Only needed when the whole list
+     * has to be re-themed, adds and deletes update the model directly.
+     */
     public void redraw(ToDoActivity c, FOCUS focus)
     {
+        commitEdits();
         title.setTextColor(pm.getActiveColor());
         
-        TableLayout table = (TableLayout) c.findViewById(R.id.table_layout);
-        
-        table.removeAllViews();
-
-        LinkedList<Note> notes = db.getAllNotes(mAppWidgetId);
+        notes = new ArrayList<Note>(db.getAllNotes(mAppWidgetId));
         if (notes.size() == 0)
         {
-            db.addNote(new Note(mAppWidgetId));
-            notes = db.getAllNotes(mAppWidgetId);
+            Note n = new Note(mAppWidgetId);
+            db.addNote(n);
+            notes.add(n);
             focus = FOCUS.GIVE_TO_LAST_WITH_KEYBOARD;
         }
-
-        for (int i = 0; i < notes.size(); i++)
+        
+        filter.setNotes(notes);
+        adapter.notifyDataSetChanged();
+        focusLast(focus);
+    }
+    
+    /**
+     * Adds a single note to the end of the list
+     */
+    private void appendNote(Note n, FOCUS focus)
+    {
+        // a new, empty, note wouldn't match the filter
+        if (filter.isActive()) filterText.setText("");
+        
+        notes.add(n);
+        notesChanged();
+        focusLast(focus);
+    }
+    
+    /**
+     * Refreshes the list after notes were added, removed or replaced
+     */
+    private void notesChanged()
+    {
+        filter.invalidate();
+        adapter.notifyDataSetChanged();
+    }
+    
+    /**
+     * Deletes a note and removes it from the list
+     */
+    private void removeNote(Note n)
+    {
+        db.deleteNote(n);
+        notes.remove(n);
+        
+        // always leave an empty note to type into
+        if (notes.size() == 0)
         {
-            Note n = notes.get(i);
-            TableRow row = addNote(n, c);
-            table.addView(row);
-
-            if (i == notes.size() - 1)
-            {
-                EditText et = (EditText) row.getChildAt(1);
-                if (focus != FOCUS.NONE) et.requestFocus();
-
-                // give new note focus
-                if (focus == FOCUS.GIVE_TO_LAST_WITH_KEYBOARD) et.postDelayed(new ShowKeyboardRunnable(et), 200);
-                
-            }
+            Note empty = new Note(mAppWidgetId);
+            db.addNote(empty);
+            appendNote(empty, FOCUS.GIVE_TO_LAST_WITH_KEYBOARD);
+        }
+        else
+        {
+            notesChanged();
+            focusLast(FOCUS.NONE);
+        }
+    }
+    
+    private Note findNote(int id)
+    {
+        for (Note n : notes)
+        {
+            if (n.id == id) return n;
+        }
+        return null;
+    }
+    
+    /**
+     * Scrolls to the last note and, depending on <code>focus</code>, gives
+     * it focus once its row is bound
+     */
+    private void focusLast(FOCUS focus)
+    {
+        if (focus == FOCUS.NONE)
+        {
+            adapter.focusNoteId = -1;
+            if (getCurrentFocus() != null) getCurrentFocus().clearFocus();
+            return;
         }
         
-        if (focus == FOCUS.NONE && c.getCurrentFocus() != null) c.getCurrentFocus().clearFocus();
+        int last = adapter.getCount() - 1;
+        if (last < 0) return;
+        
+        adapter.focusNoteId = adapter.getNote(last).id;
+        adapter.showKeyboard = focus == FOCUS.GIVE_TO_LAST_WITH_KEYBOARD;
+        list.setSelection(last);
     }
     
     /**
-     * Utility function to create a TableRow and set defaults
+     * Utility function to create a row and set defaults
      * @param c
      * @return
      */
-    private static TableRow createRow(Context c)
+    private static LinearLayout createRow(Context c)
     {
-        TableRow row = new TableRow(c);
-        row.setLayoutParams(new TableRow.LayoutParams(
-                TableRow.LayoutParams.WRAP_CONTENT,
-                TableRow.LayoutParams.WRAP_CONTENT));
-        row.setVerticalGravity(Gravity.TOP);
+        LinearLayout row = new LinearLayout(c);
+        row.setOrientation(LinearLayout.HORIZONTAL);
+        row.setLayoutParams(new AbsListView.LayoutParams(
+                AbsListView.LayoutParams.FILL_PARENT,
+                AbsListView.LayoutParams.WRAP_CONTENT));
+        row.setGravity(Gravity.TOP);
         row.setPadding(0, 0, 0, 0);
         return row;
     }
@@ -284,7 +1170,7 @@ public class ToDoActivity extends Activity
     private static ImageView createImage(Context c, Drawable drawable)
     {
         ImageView iv = new ImageView(c);
-        iv.setLayoutParams(new TableRow.LayoutParams(TableRow.LayoutParams.WRAP_CONTENT,TableRow.LayoutParams.WRAP_CONTENT));
+        iv.setLayoutParams(new LinearLayout.LayoutParams(LinearLayout.LayoutParams.WRAP_CONTENT,LinearLayout.LayoutParams.WRAP_CONTENT));
         iv.setImageDrawable(drawable);
         iv.setScaleType(ScaleType.CENTER);
         iv.setPadding(0, 0, 0, 0);
@@ -294,7 +1180,8 @@ public class ToDoActivity extends Activity
     private static EditText createInput(Context c)
     {
         EditText et = new EditText(c);
-        et.setWidth((int)(scale * 200));
+        et.setLayoutParams(new LinearLayout.LayoutParams(0, LinearLayout.LayoutParams.WRAP_CONTENT, 1));
+        et.setMinWidth((int)(scale * 200));
         et.setInputType(InputType.TYPE_CLASS_TEXT | InputType.TYPE_TEXT_VARIATION_NORMAL);
         return et;
     }
@@ -312,19 +1199,99 @@ public class ToDoActivity extends Activity
     @Override
     protected void onActivityResult(int reqCode, int resultCode, Intent result)
     {
-        // we don't care about the result, just refresh
+        // refresh if the preferences changed
         if (debug) Log.i(LOG_TAG,"onActivityResult");
         
+        // still loading, the loader has the latest settings
+        if (loader != null) return;
+        
+        // the preferences were cancelled or left unchanged
+        if (resultCode != RESULT_OK) return;
+        
         // reload settings
-        pm = new PreferenceManager(this, db);
+        pm = new PreferenceManager(this, db, mAppWidgetId);
+        rowTheme.update(pm);
         
         redraw(ToDoActivity.this, FOCUS.GIVE_TO_LAST);
     }
     
+    /**
+     * The views of a row and the note currently bound to them
+     */
+    static class RowHolder
+    {
+        Note note;
+        ImageView toggle;
+        EditText text;
+        ImageView delete;
+        ImageView handle;
+        MyTextWatcher watcher;
+    }
+    
+    /**
+     * Supplies the list with rows, binding only those that are visible and
+     * reusing the views of rows that have scrolled out of sight. Edits are
+     * written straight into the model so they survive their row being
+     * recycled.
+     */
+    class NoteAdapter extends BaseAdapter
+    {
+        // id of the note whose row should have focus when bound
+        int focusNoteId = -1;
+        boolean showKeyboard = false;
+        
+        public int getCount() { return filter.size(); }
+        public Object getItem(int position) { return getNote(position); }
+        public long getItemId(int position) { return getNote(position).id; }
+        
+        Note getNote(int position)
+        {
+            return notes.get(filter.get(position));
+        }
+        
+        @Override
+        public boolean hasStableIds() { return true; }
+        
+        public View getView(int position, View convertView, ViewGroup parent)
+        {
+            LinearLayout row = (LinearLayout) convertView;
+            if (row == null) row = createNoteRow(ToDoActivity.this);
+            bind(row, getNote(position));
+            return row;
+        }
+        
+        private void bind(LinearLayout row, Note n)
+        {
+            RowHolder holder = (RowHolder) row.getTag();
+            
+            // detach the watcher so setting the text isn't saved as an edit
+            holder.watcher.note = null;
+            holder.note = n;
+            if (!holder.text.getText().toString().equals(n.text == null ? "" : n.text))
+            {
+                holder.text.setText(n.text);
+            }
+            holder.watcher.note = n;
+            
+            toggleRow(row, n.status);
+            selectRow(row, selected != null);
+            
+            if (n.id == focusNoteId && !holder.text.hasFocus())
+            {
+                holder.text.requestFocus();
+                holder.text.setSelection(holder.text.getText().length());
+                if (showKeyboard)
+                {
+                    showKeyboard = false;
+                    holder.text.postDelayed(new ShowKeyboardRunnable(holder.text), 200);
+                }
+            }
+        }
+    }
+    
     class DeleteClickListener implements View.OnClickListener
     {
         ToDoActivity c;
-        int noteId = -1;
         
         public DeleteClickListener(ToDoActivity c)
         {
@@ -333,35 +1300,16 @@ public class ToDoActivity extends Activity
         
         public void onClick(View v)
         {
-            ImageView b = ((ImageView)v);
-            Note n = db.getNote(b.getId());
-            String name = n.text;
-            if (name == null) name = "";
-            if (name.length() > 5) name = name.substring(0,5)+"...";
-            if (name.length() > 0) name = "(" + name + ")";
-            String message = getString(R.string.delete_confirm);
-            message = message.replace("[note]", name);
-            
-            String confirm = getString(android.R.string.ok);
-            String cancel = getString(android.R.string.cancel);
+            RowHolder holder = (RowHolder) ((View) v.getParent()).getTag();
+            Note n = holder.note;
+            if (n == null || selected != null) return;
             
-            noteId = n.id;
-
-            new AlertDialog.Builder(v.getContext())
-            .setMessage(message)
-            .setPositiveButton(confirm, new DialogInterface.OnClickListener() {
-               public void onClick(DialogInterface dialog, int id) {
-                    Note n = db.getNote(noteId);
-                    db.deleteNote(n);
-                    redraw(c, FOCUS.NONE);
-               }
-           })
-           .setNegativeButton(cancel, new DialogInterface.OnClickListener() {
-               public void onClick(DialogInterface dialog, int id) {
-                    dialog.cancel();
-               }
-           })
-           .show();
+            // no need to confirm, the delete can be undone
+            commitEdits();
+            journal.record(OperationJournal.DELETE, new Note[] { n.copy() }, new Note[0]);
+            removeNote(n);
+            updateUndoState();
+            Toast.makeText(c, R.string.note_deleted, Toast.LENGTH_SHORT).show();
         }
     }
     
@@ -376,14 +1324,64 @@ public class ToDoActivity extends Activity
         
         public void onClick(View v)
         {
-            ImageView b = ((ImageView)v);
-            Note n = db.getNote(b.getId());
+            RowHolder holder = (RowHolder) ((View) v.getParent()).getTag();
+            if (holder.note == null) return;
             
-            n.status = (n.status == Status.FINISHED) ? Status.CREATED : Status.FINISHED;
-           
-            db.updateNote(n);
+            // in selection mode the icon picks rows rather than toggling them
+            if (selected != null)
+            {
+                toggleSelection((ViewGroup) v.getParent(), holder.note);
+                return;
+            }
+            
+            commitEdits();
+            Note before = holder.note.copy();
+            Note n = db.toggleNote(holder.note.id);
+            if (n == null) return;
+            holder.note.status = n.status;
+            journal.record(OperationJournal.STATUS, new Note[] { before }, new Note[] { holder.note.copy() });
+            updateUndoState();
             
-            toggleRow((TableRow)(v.getParent()), n.status);
+            toggleRow((ViewGroup)(v.getParent()), n.status);
+        }
+    }
+    
+    /**
+     * Drags a note up and down the list by the handle at the end of its row
+     */
+    class DragTouchListener implements View.OnTouchListener
+    {
+        public boolean onTouch(View v, MotionEvent event)
+        {
+            switch (event.getAction())
+            {
+                case MotionEvent.ACTION_DOWN:
+                    RowHolder holder = (RowHolder) ((View) v.getParent()).getTag();
+                    
+                    // the order isn't visible while filtering
+                    if (holder.note == null || loader != null || selected != null || filter.isActive()) return false;
+                    
+                    commitEdits();
+                    if (getCurrentFocus() != null) getCurrentFocus().clearFocus();
+                    dragNote = holder.note;
+                    dragBefore = holder.note.copy();
+                    dragFrom = notes.indexOf(dragNote);
+                    
+                    // stop the list scrolling instead
+                    list.requestDisallowInterceptTouchEvent(true);
+                    adapter.notifyDataSetChanged();
+                    return true;
+                    
+                case MotionEvent.ACTION_MOVE:
+                    if (dragNote != null) dragTo((int) event.getRawY());
+                    return true;
+                    
+                case MotionEvent.ACTION_UP:
+                case MotionEvent.ACTION_CANCEL:
+                    if (dragNote != null) drop();
+                    return true;
+            }
+            return false;
         }
     }
     
@@ -391,6 +1389,9 @@ public class ToDoActivity extends Activity
     {
         EditText et;
         
+        // the note being edited, null while the row is being rebound
+        Note note;
+        
         public MyTextWatcher(EditText et)
         {
             this.et = et;
@@ -398,13 +1399,41 @@ public class ToDoActivity extends Activity
 
         public void afterTextChanged(Editable s)
         {
-        	try
-        	{
-	            Note n = db.getNote(et.getId());
-	            n.text = et.getText().toString();
-	            db.updateNote(n);
-        	}
-        	catch (NullPointerException npe) { /* do nothing */ }
+            if (db == null || note == null) return;
+            Note before = note.copy();
+            note.text = et.getText().toString();
+            filter.textChanged();
+            
+            // cheap to record now, written to the database once typing pauses
+            recoveryLog.append(note.id, note.text);
+            pendingEdits.put(note.id, note.text);
+            handler.removeCallbacks(commitRunnable);
+            handler.postDelayed(commitRunnable, COMMIT_DELAY);
+            
+            journal.record(OperationJournal.TEXT, new Note[] { before }, new Note[] { note.copy() });
+            updateUndoState();
+        }
+
+        public void beforeTextChanged(CharSequence s, int start, int count,
+                int after)
+        {}
+
+        public void onTextChanged(CharSequence s, int start, int before,
+                int count)
+        { }
+    }
+
+    /**
+     * Narrows the list down as the filter is typed
+     */
+    class FilterTextWatcher implements TextWatcher
+    {
+        public void afterTextChanged(Editable s)
+        {
+            long start = SystemClock.uptimeMillis();
+            filter.filter(s.toString());
+            adapter.notifyDataSetChanged();
+            if (debug) Log.d(LOG_TAG, "Filtered " + notes.size() + " notes to " + filter.size() + " in " + (SystemClock.uptimeMillis() - start) + "ms");
         }
 
         public void beforeTextChanged(CharSequence s, int start, int count,
@@ -426,6 +1455,7 @@ public class ToDoActivity extends Activity
         @Override
         public void afterTextChanged(Editable s)
         {
+            if (db == null) return;
             int id= et.getId();
             String str = et.getText().toString();
             db.setTitle(id, str);
@@ -0,0 +1,200 @@
+/*******************************************************************************
+ * ToDo List Widget - Android homescreen note taking application
+ * Copyright (C) 2011  Chris Bailey
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.chrisbailey.todo.db;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+
+import org.chrisbailey.todo.utils.Note;
+
+/**
+ * Append-only record of the edits made to a list, allowing them to be undone
+ * and redone.
+ * 
+ * Each operation stores the affected notes as they were before and after it,
+ * so undoing or redoing a step is a single write of those notes regardless of
+ * the size of the list. A status change is saved as just the ids and the two
+ * statuses, so marking a whole list done costs one row per note. The undo history is capped at
+ * {@link #MAX_OPERATIONS} and is written to the database in batches by
+ * {@link #flush()}, not once per edit.
+ */
+public class OperationJournal
+{
+    public static final int ADD = 0;
+    public static final int DELETE = 1;
+    public static final int TEXT = 2;
+    public static final int STATUS = 3;
+    public static final int REORDER = 4;
+    public static final int MOVE = 5;
+    
+    // the note columns each type of operation changes, undo & redo only
+    // write these so later changes to other columns aren't reverted
+    private static final String[][] COLUMNS =
+    {
+        {},                         // ADD, inserts & deletes only
+        {},                         // DELETE
+        { "name" },                 // TEXT
+        { "status" },               // STATUS
+        { "position" },             // REORDER
+        { "list", "position" },     // MOVE
+    };
+    
+    // maximum number of operations that can be undone
+    public static final int MAX_OPERATIONS = 50;
+    
+    public static class Operation
+    {
+        int id;
+        public final int type;
+        public Note[] before;
+        public Note[] after;
+        
+        // whether this operation is currently stored in the database
+        boolean persisted;
+        
+        Operation(int id, int type, Note[] before, Note[] after)
+        {
+            this.id = id;
+            this.type = type;
+            this.before = before;
+            this.after = after;
+        }
+    }
+    
+    private final ToDoDatabase db;
+    private final int list;
+    
+    private final LinkedList<Operation> undo;
+    private final LinkedList<Operation> redo = new LinkedList<Operation>();
+    
+    // ids of persisted operations that have since been undone
+    private final ArrayList<Integer> discarded = new ArrayList<Integer>();
+    
+    private int nextId;
+    
+    /**
+     * Creates the journal for a list, reading back its saved undo history
+     * @param db
+     * @param list
+     */
+    public OperationJournal(ToDoDatabase db, int list)
+    {
+        this(db, db, list);
+    }
+    
+    /**
+     * Creates the journal for a list, reading back its saved undo history
+     * through a different connection, e.g. one used off the ui thread
+     * @param db used for all later writes
+     * @param reader used to read the history now
+     * @param list
+     */
+    public OperationJournal(ToDoDatabase db, ToDoDatabase reader, int list)
+    {
+        this.db = db;
+        this.list = list;
+        this.undo = reader.getJournal(list, MAX_OPERATIONS);
+        this.nextId = undo.isEmpty() ? 0 : undo.getLast().id + 1;
+    }
+    
+    /**
+     * Records an operation that has just been applied to the database.
+     * Consecutive text edits of the same note are merged into one step.
+     * 
+     * @param type
+     * @param before the affected notes before the operation, empty if added
+     * @param after the affected notes after the operation, empty if deleted
+     */
+    public void record(int type, Note[] before, Note[] after)
+    {
+        redo.clear();
+        
+        Operation last = undo.isEmpty() ? null : undo.getLast();
+        if (type == TEXT && last != null && last.type == TEXT && !last.persisted
+                && last.after.length == 1 && after.length == 1 && last.after[0].id == after[0].id)
+        {
+            last.after = after;
+            return;
+        }
+        
+        undo.addLast(new Operation(nextId++, type, before, after));
+        if (undo.size() > MAX_OPERATIONS) undo.removeFirst();
+    }
+    
+    public boolean canUndo() { return !undo.isEmpty(); }
+    public boolean canRedo() { return !redo.isEmpty(); }
+    
+    /**
+     * Reverts the most recent operation
+     * @return the operation undone, <code>null</code> if there was none
+     */
+    public Operation undo()
+    {
+        if (undo.isEmpty()) return null;
+        
+        Operation op = undo.removeLast();
+        db.applyNotes(op.after, op.before, COLUMNS[op.type]);
+        
+        if (op.persisted)
+        {
+            discarded.add(op.id);
+            op.persisted = false;
+        }
+        redo.addLast(op);
+        return op;
+    }
+    
+    /**
+     * Re-applies the most recently undone operation
+     * @return the operation redone, <code>null</code> if there was none
+     */
+    public Operation redo()
+    {
+        if (redo.isEmpty()) return null;
+        
+        Operation op = redo.removeLast();
+        db.applyNotes(op.before, op.after, COLUMNS[op.type]);
+        
+        undo.addLast(op);
+        if (undo.size() > MAX_OPERATIONS) undo.removeFirst();
+        return op;
+    }
+    
+    /**
+     * Writes all changes to the undo history since the last flush in a
+     * single transaction
+     */
+    public void flush()
+    {
+        ArrayList<Operation> pending = new ArrayList<Operation>();
+        for (Operation op : undo)
+        {
+            if (!op.persisted) pending.add(op);
+        }
+        if (pending.isEmpty() && discarded.isEmpty()) return;
+        
+        // anything older than the oldest retained operation has been dropped
+        int oldest = undo.isEmpty() ? nextId : undo.getFirst().id;
+        
+        if (db.writeJournal(list, pending, discarded, oldest))
+        {
+            for (Operation op : pending) op.persisted = true;
+            discarded.clear();
+        }
+    }
+}
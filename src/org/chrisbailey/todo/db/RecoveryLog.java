@@ -0,0 +1,190 @@
+/*******************************************************************************
+ * ToDo List Widget - Android homescreen note taking application
+ * Copyright (C) 2011  Chris Bailey
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.chrisbailey.todo.db;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Append-only file of note edits that haven't been written to the database
+ * yet. Each keystroke appends one small record, which costs far less than a
+ * database transaction as the file is only ever appended to, and the edits
+ * are committed to the database in batches. If the process dies before that happens the edits are found and
+ * written by {@link #replay(ToDoDatabase)} the next time the editor opens.
+ * 
+ * Records are a note id, the length of the text in bytes and the UTF-8 text.
+ * A record cut short by the process being killed is ignored.
+ */
+public class RecoveryLog
+{
+    private static final String LOG_TAG = "RecoveryLog";
+    private static final String FILE_NAME = "pending_edits";
+    
+    private final File file;
+    private FileOutputStream fileOut;
+    private DataOutputStream out;
+    
+    public RecoveryLog(Context context)
+    {
+        file = new File(context.getFilesDir(), FILE_NAME);
+    }
+    
+    /**
+     * Records the new text of a note. The record is synced to storage before
+     * this returns, so it survives a power loss as well as the process being
+     * killed.
+     * @param noteId
+     * @param text
+     */
+    public synchronized void append(int noteId, String text)
+    {
+        try
+        {
+            if (out == null)
+            {
+                fileOut = new FileOutputStream(file, true);
+                out = new DataOutputStream(new BufferedOutputStream(fileOut));
+            }
+            
+            byte[] bytes = text.getBytes("UTF-8");
+            out.writeInt(noteId);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            out.flush();
+            fileOut.getFD().sync();
+        }
+        catch (IOException e)
+        {
+            Log.e(LOG_TAG, "Error appending edit of note [" + noteId + "]", e);
+        }
+    }
+    
+    /**
+     * Empties the log once its edits are safely in the database
+     */
+    public synchronized void clear()
+    {
+        close();
+        if (file.exists() && !file.delete()) Log.w(LOG_TAG, "Unable to delete " + file);
+    }
+    
+    public synchronized void close()
+    {
+        if (out == null) return;
+        try
+        {
+            out.close();
+        }
+        catch (IOException e)
+        {
+            Log.e(LOG_TAG, "Error closing " + file, e);
+        }
+        out = null;
+        fileOut = null;
+    }
+    
+    /**
+     * Writes any edits left over from a previous run into the database in a
+     * single transaction, then empties the log
+     * @param db
+     * @return the number of notes recovered
+     */
+    public synchronized int replay(ToDoDatabase db)
+    {
+        if (!file.exists()) return 0;
+        
+        final Map<Integer,String> edits = read();
+        if (!edits.isEmpty())
+        {
+            boolean saved = db.batch(new ToDoDatabase.Batch()
+            {
+                public void run(ToDoDatabase db)
+                {
+                    for (Map.Entry<Integer,String> e : edits.entrySet())
+                    {
+                        db.updateText(e.getKey(), e.getValue());
+                    }
+                }
+            });
+            
+            // keep the log for another try
+            if (!saved) return 0;
+        }
+        
+        clear();
+        return edits.size();
+    }
+    
+    /**
+     * @return the latest text of each note in the log
+     */
+    private Map<Integer,String> read()
+    {
+        LinkedHashMap<Integer,String> edits = new LinkedHashMap<Integer,String>();
+        DataInputStream in = null;
+        try
+        {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            while (true)
+            {
+                int noteId = in.readInt();
+                int length = in.readInt();
+                if (length < 0 || length > file.length()) break;
+                
+                byte[] bytes = new byte[length];
+                in.readFully(bytes);
+                edits.put(noteId, new String(bytes, "UTF-8"));
+            }
+        }
+        catch (EOFException e)
+        {
+            // end of the log, or a record that was only partly written
+        }
+        catch (IOException e)
+        {
+            Log.e(LOG_TAG, "Error reading " + file, e);
+        }
+        finally
+        {
+            if (in != null)
+            {
+                try
+                {
+                    in.close();
+                }
+                catch (IOException e)
+                {
+                    Log.e(LOG_TAG, "Error closing " + file, e);
+                }
+            }
+        }
+        return edits;
+    }
+}
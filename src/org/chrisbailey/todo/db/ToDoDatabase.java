@@ -17,8 +17,11 @@
  ******************************************************************************/
 package org.chrisbailey.todo.db;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 
 import org.chrisbailey.todo.activities.ToDoActivity;
 import org.chrisbailey.todo.utils.Note;
@@ -26,6 +29,7 @@ import org.chrisbailey.todo.utils.Note.Status;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.util.Log;
@@ -36,11 +40,12 @@ public class ToDoDatabase extends SQLiteOpenHelper
     private static final String DATABASE_NAME = "ToDoWidget";
 
     // The version of the database that this class understands
-    private static final int DATABASE_VERSION = 2;
+    private static final int DATABASE_VERSION = 6;
 
     // static table name identifier
     public static final String VARIABLE_TABLE_NAME = "variables";
     public static final String NOTE_TABLE_NAME = "notes";
+    public static final String JOURNAL_TABLE_NAME = "journal";
     
     // user preferences
     public static final String PREF_BACKGROUND = "pref_background";
@@ -52,15 +57,49 @@ public class ToDoDatabase extends SQLiteOpenHelper
 
     public static final String FIELD_OFFSET = "offset_";
     
+    // id of the theme shared by widgets without a theme of their own
+    public static final int GLOBAL_THEME = 0;
+    
+    // present for each widget with its own theme
+    private final static String THEME_KEY = "pref_theme_";
+    
+    // the journal as version 3 created it, later versions alter it so the
+    // upgrade from 2 must not use the current definition
+    private final static String JOURNAL_V3_SQL =
+       "CREATE TABLE " + JOURNAL_TABLE_NAME + " (op INT, list INT, type INT, side INT, note INT, name TEXT, status INT, created INT);\n" +
+       "CREATE INDEX journal_list ON " + JOURNAL_TABLE_NAME + " (list, op);";
+    
+    // undo journal, one row per note per side (before/after) of an operation,
+    // note_list is the list the note was in, which differs for a move. A
+    // status change is one row per note holding just the old status and
+    // new_status, see JOURNAL_STATUS.
+    private final static String JOURNAL_SQL =
+       "CREATE TABLE " + JOURNAL_TABLE_NAME + " (op INT, list INT, type INT, side INT, note INT, name TEXT, status INT, created INT, position REAL, note_list INT, new_status INT);\n" +
+       "CREATE INDEX journal_list ON " + JOURNAL_TABLE_NAME + " (list, op);";
+    
     // SQL create query
     private final static String CREATE_SQL = 
        "CREATE TABLE " + VARIABLE_TABLE_NAME + " (name TEXT PRIMARY KEY, value TEXT);\n" +
-       "CREATE TABLE " + NOTE_TABLE_NAME + " (list INT, name TEXT, status INT, created INT);";
+       "CREATE TABLE " + NOTE_TABLE_NAME + " (list INT, name TEXT, status INT, created INT, position REAL);\n" +
+       "CREATE INDEX notes_position ON " + NOTE_TABLE_NAME + " (list, position);\n" +
+       JOURNAL_SQL;
 
     private final static String LOG_TAG = "ToDoDatabase";
     
+    // the side of a journal row, a status change has both in one row
+    private final static int JOURNAL_BEFORE = 0;
+    private final static int JOURNAL_AFTER = 1;
+    private final static int JOURNAL_STATUS = 2;
+    
+    // checkpoint the write-ahead log every this many pages, our writes are
+    // small so keep the log short to keep checkpoints cheap
+    private final static int WAL_AUTOCHECKPOINT = 100;
+    
     private final static String TITLE_KEY = "title_";
     
+    // incremented whenever the notes of a list change
+    private final static String VERSION_KEY = "version_";
+    
     // create all required upgrade paths as a hashmap
     private final static HashMap<String,String> UPGRADE_SQL 
         = new HashMap<String,String>();
@@ -68,6 +107,30 @@ public class ToDoDatabase extends SQLiteOpenHelper
     static
     {
         UPGRADE_SQL.put("1-2", "CREATE TABLE " + VARIABLE_TABLE_NAME + " (name TEXT PRIMARY KEY, value TEXT);");
+        UPGRADE_SQL.put("2-3", JOURNAL_V3_SQL);
+        UPGRADE_SQL.put("3-4", 
+                "ALTER TABLE " + NOTE_TABLE_NAME + " ADD COLUMN position REAL;\n" +
+                "UPDATE " + NOTE_TABLE_NAME + " SET position = rowid;\n" +
+                "CREATE INDEX notes_position ON " + NOTE_TABLE_NAME + " (list, position);\n" +
+                "ALTER TABLE " + JOURNAL_TABLE_NAME + " ADD COLUMN position REAL;");
+        UPGRADE_SQL.put("4-5", 
+                "ALTER TABLE " + JOURNAL_TABLE_NAME + " ADD COLUMN note_list INT;\n" +
+                "UPDATE " + JOURNAL_TABLE_NAME + " SET note_list = list;");
+        UPGRADE_SQL.put("5-6", 
+                "ALTER TABLE " + JOURNAL_TABLE_NAME + " ADD COLUMN new_status INT;");
+    }
+    
+    /**
+     * A unit of work run by {@link ToDoDatabase#batch(Batch)}
+     */
+    public interface Batch
+    {
+        /**
+         * Perform any number of operations on <code>db</code>, they are all
+         * committed together once this returns
+         * @param db
+         */
+        void run(ToDoDatabase db);
     }
     
     /**
@@ -78,6 +141,175 @@ public class ToDoDatabase extends SQLiteOpenHelper
     public ToDoDatabase(Context context)
     {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this.context = context;
+    }
+    
+    private Context context;
+    
+    // the helper's own connection, as last passed to onOpen
+    private SQLiteDatabase writer;
+    
+    // separate read-only connection used for reads when in WAL mode
+    private SQLiteDatabase reader;
+    
+    // whether our connection is in write-ahead logging mode, as reported
+    // back by the journal_mode pragma when it was opened. Only then is the
+    // separate reader safe, otherwise it could be refused during a write.
+    private boolean walEnabled = false;
+    
+    // nesting depth of batch() calls, and whether a write inside failed
+    private int batchDepth = 0;
+    private boolean batchFailed = false;
+    
+    /**
+     * Switches the database to write-ahead logging so that the widgets can
+     * read while the editor writes. WAL needs SQLite 3.7 and a filesystem
+     * with shared memory, otherwise the pragma just reports the existing
+     * journal mode and we carry on with the rollback journal and a single
+     * connection. The mode is checked every time the database is opened, as
+     * newer platforms reset it on open.
+     * 
+     * @see android.database.sqlite.SQLiteOpenHelper#onOpen(android.database.sqlite.SQLiteDatabase)
+     */
+    @Override
+    public void onOpen(SQLiteDatabase db)
+    {
+        super.onOpen(db);
+        writer = db;
+        walEnabled = false;
+        
+        if (db.isReadOnly()) return;
+        
+        String mode = execPragma(db, "PRAGMA journal_mode=WAL");
+        walEnabled = "wal".equalsIgnoreCase(mode);
+        if (walEnabled)
+        {
+            execPragma(db, "PRAGMA wal_autocheckpoint=" + WAL_AUTOCHECKPOINT);
+            // in WAL mode NORMAL only syncs at checkpoints, and is still safe
+            // against the app being killed
+            execPragma(db, "PRAGMA synchronous=NORMAL");
+        }
+        if (ToDoActivity.debug) Log.d(LOG_TAG, "journal mode: " + mode);
+    }
+    
+    /**
+     * Runs a pragma, returning the first column of its result if any
+     */
+    private String execPragma(SQLiteDatabase db, String pragma)
+    {
+        Cursor c = null;
+        try
+        {
+            c = db.rawQuery(pragma, null);
+            if (c.moveToFirst()) return c.getString(0);
+        }
+        catch (Exception e)
+        {
+            Log.w(LOG_TAG, "Unable to run " + pragma, e);
+        }
+        finally
+        {
+            if (null != c) c.close();
+        }
+        return null;
+    }
+    
+    /**
+     * Returns the connection reads should go through. In WAL mode this is a
+     * separate read-only connection, so reads never wait on the editor's
+     * writes. Inside a transaction on our own connection we read from that
+     * instead, so the transaction sees its own changes.
+     */
+    private SQLiteDatabase getReaderDatabase()
+    {
+        if (!walEnabled || (writer != null && writer.isOpen() && writer.inTransaction()))
+        {
+            return this.getReadableDatabase();
+        }
+        
+        if (reader == null || !reader.isOpen())
+        {
+            try
+            {
+                String path = context.getDatabasePath(DATABASE_NAME).getPath();
+                reader = SQLiteDatabase.openDatabase(path, null, SQLiteDatabase.OPEN_READONLY);
+            }
+            catch (Exception e)
+            {
+                Log.w(LOG_TAG, "Unable to open read connection", e);
+                return this.getReadableDatabase();
+            }
+            
+            // the file may have left WAL mode since, through another
+            // connection, in which case stay on the one connection
+            String mode = execPragma(reader, "PRAGMA journal_mode");
+            if (!"wal".equalsIgnoreCase(mode))
+            {
+                if (ToDoActivity.debug) Log.d(LOG_TAG, "reader journal mode: " + mode);
+                reader.close();
+                reader = null;
+                walEnabled = false;
+                return this.getReadableDatabase();
+            }
+        }
+        return reader;
+    }
+    
+    /**
+     * Runs several operations inside one transaction so they share a single
+     * commit. The write methods of this class nest inside the outer
+     * transaction, so if any of them fails the whole batch is rolled back.
+     * 
+     * @param ops
+     * @return <code>true</code> if the batch was committed
+     */
+    public boolean batch(Batch ops)
+    {
+        boolean success = false;
+        try
+        {
+            SQLiteDatabase db = this.getWritableDatabase();
+
+            db.beginTransaction();
+            if (batchDepth++ == 0) batchFailed = false;
+            try
+            {
+                ops.run(this);
+                
+                // a failed write has already rolled back its own nested
+                // transaction, which dooms the whole batch
+                if (!batchFailed)
+                {
+                    db.setTransactionSuccessful();
+                    success = true;
+                }
+            }
+            catch (Exception e)
+            {
+                Log.e(LOG_TAG, "Error running batch", e);
+                batchFailed = true;
+            }
+            finally
+            {
+                batchDepth--;
+                db.endTransaction();
+            }
+        }
+        catch (Exception e) 
+        {
+            writeFailed("Unable to open database for writing", e);
+        }
+        return success;
+    }
+
+    /**
+     * Logs a failed write. Inside a batch the write's nested transaction
+     * has been rolled back, so the batch is marked as failed too.
+     */
+    private void writeFailed(String message, Exception e)
+    {
+        Log.e(LOG_TAG, message, e);
+        if (batchDepth > 0) batchFailed = true;
     }
 
     /**
@@ -103,7 +335,7 @@ public class ToDoDatabase extends SQLiteOpenHelper
             }
             catch (Exception e)
             {
-                Log.e(LOG_TAG, "Error writing variable info to database [" + name + "," + value + "]", e);
+                writeFailed("Error writing variable info to database [" + name + "," + value + "]", e);
             }
             finally
             {
@@ -112,7 +344,7 @@ public class ToDoDatabase extends SQLiteOpenHelper
         }
         catch (Exception e) 
         {
-            Log.e(LOG_TAG, "Unable to open database for writing", e);
+            writeFailed("Unable to open database for writing", e);
         }
     }
 
@@ -156,7 +388,7 @@ public class ToDoDatabase extends SQLiteOpenHelper
         String result = null;
         try
         {
-            SQLiteDatabase db = this.getReadableDatabase();
+            SQLiteDatabase db = this.getReaderDatabase();
             c = db.query(VARIABLE_TABLE_NAME, cols,
                     "name=?", whereArgs, null, null, null);
             boolean hasResult = c.moveToFirst();
@@ -165,7 +397,6 @@ public class ToDoDatabase extends SQLiteOpenHelper
                 result = c.getString(0);
             }
             c.close();
-            db.close();
         }
         catch (Exception e)
         {
@@ -210,7 +441,7 @@ public class ToDoDatabase extends SQLiteOpenHelper
             }
             catch (Exception e)
             {
-                Log.e(LOG_TAG, "Error removing variable from database [" + name + "]", e);
+                writeFailed("Error removing variable from database [" + name + "]", e);
             }
             finally
             {
@@ -219,7 +450,7 @@ public class ToDoDatabase extends SQLiteOpenHelper
         }
         catch (Exception e) 
         {
-            Log.e(LOG_TAG, "Unable to open database for writing", e);
+            writeFailed("Unable to open database for writing", e);
         }
     }
 
@@ -254,95 +485,155 @@ public class ToDoDatabase extends SQLiteOpenHelper
         deleteVariable(TITLE_KEY + id);
     }
     
+    /**
+     * Gets the version of a list, which changes every time one of its notes
+     * is written. Used to decide whether cached notes are still current.
+     * @param list
+     * @return
+     */
+    public int getListVersion(int list)
+    {
+        return getIntVariable(VERSION_KEY + list);
+    }
+    
+    /**
+     * Increments the version of the list a note currently belongs to. Must
+     * be called from within the transaction that modifies the note.
+     * @param db
+     * @param noteId
+     */
+    private void bumpNoteListVersion(SQLiteDatabase db, int noteId)
+    {
+        bumpListVersions(db, "rowid = ?", new Object[] { noteId });
+    }
     
-    public int getPrefSize()
+    /**
+     * Increments the version of every list containing notes matching
+     * <code>where</code>. Must be called from within the transaction that
+     * modifies the notes.
+     * @param db
+     * @param where
+     * @param whereArgs
+     */
+    private void bumpListVersions(SQLiteDatabase db, String where, Object[] whereArgs)
     {
-        return getIntVariable(PREF_SIZE);
+        String key = "'" + VERSION_KEY + "' || list";
+        db.execSQL("REPLACE INTO " + VARIABLE_TABLE_NAME + " (name,value) SELECT DISTINCT " + key + ", "
+                + "COALESCE((SELECT value FROM " + VARIABLE_TABLE_NAME + " WHERE name=" + key + "),0)+1 "
+                + "FROM " + NOTE_TABLE_NAME + " WHERE " + where,
+                whereArgs);
     }
     
-    public void setPrefSize(int value)
+    /**
+     * Increments the version of a list. Must be called from within the
+     * transaction that modifies the list.
+     * @param db
+     * @param list
+     */
+    private void bumpListVersion(SQLiteDatabase db, int list)
     {
-        setIntVariable(PREF_SIZE, value);
+        String key = VERSION_KEY + list;
+        db.execSQL("REPLACE INTO " + VARIABLE_TABLE_NAME + " (name,value) VALUES (?, "
+                + "COALESCE((SELECT value FROM " + VARIABLE_TABLE_NAME + " WHERE name=?),0)+1)",
+                new Object[] { key, key });
     }
     
-    public int getPrefBackground()
+    
+    /**
+     * The preferences below are stored once for the global theme, and again
+     * for each widget with a theme of its own. <code>widgetId</code> is
+     * {@link #GLOBAL_THEME} for the global theme.
+     */
+    public int getPrefSize(int widgetId)
     {
-    	return getIntVariable(PREF_BACKGROUND);
+        return getIntVariable(themeKey(PREF_SIZE, widgetId));
     }
     
-    public void setPrefBackground(int value)
+    public void setPrefSize(int widgetId, int value)
     {
-    	setIntVariable(PREF_BACKGROUND, value);
+        setIntVariable(themeKey(PREF_SIZE, widgetId), value);
     }
     
-    public int getPrefIcon()
+    public int getPrefBackground(int widgetId)
     {
-    	return getIntVariable(PREF_ICONS);
+    	return getIntVariable(themeKey(PREF_BACKGROUND, widgetId));
     }
     
-    public void setPrefIcon(int value)
+    public void setPrefBackground(int widgetId, int value)
     {
-    	setIntVariable(PREF_ICONS, value);
+    	setIntVariable(themeKey(PREF_BACKGROUND, widgetId), value);
     }
     
-    public int getPrefColorActive()
+    public int getPrefIcon(int widgetId)
     {
-        String s = getVariable(PREF_COLOR_ACTIVE);
-        if (s == null) return 0; // need to return 0, as -1 is a valid color value
-        return Integer.parseInt(s);
+    	return getIntVariable(themeKey(PREF_ICONS, widgetId));
     }
     
-    public void setPrefColorActive(int value)
+    public void setPrefIcon(int widgetId, int value)
     {
-    	setIntVariable(PREF_COLOR_ACTIVE, value);
+    	setIntVariable(themeKey(PREF_ICONS, widgetId), value);
     }
     
-    public int getPrefColorFinished()
+    public int getPrefColorActive(int widgetId)
     {
-        String s = getVariable(PREF_COLOR_FINISHED);
+        String s = getVariable(themeKey(PREF_COLOR_ACTIVE, widgetId));
         if (s == null) return 0; // need to return 0, as -1 is a valid color value
         return Integer.parseInt(s);
     }
     
-    public void setPrefColorFinished(int value)
+    public void setPrefColorActive(int widgetId, int value)
     {
-    	setIntVariable(PREF_COLOR_FINISHED, value);
+    	setIntVariable(themeKey(PREF_COLOR_ACTIVE, widgetId), value);
     }
     
-    public int getOffset(int widgetId)
+    public int getPrefColorFinished(int widgetId)
     {
-    	int i = getIntVariable(FIELD_OFFSET+widgetId);
-    	if (i < 1) return 0;
-    	return i;
+        String s = getVariable(themeKey(PREF_COLOR_FINISHED, widgetId));
+        if (s == null) return 0; // need to return 0, as -1 is a valid color value
+        return Integer.parseInt(s);
     }
     
-    public void setOffset(int widgetId, int offset)
+    public void setPrefColorFinished(int widgetId, int value)
     {
-    	if (offset <= 0) offset = 0;
-    	setIntVariable(FIELD_OFFSET+widgetId, offset);
+    	setIntVariable(themeKey(PREF_COLOR_FINISHED, widgetId), value);
     }
     
-    public boolean getScrollButtons()
+    /**
+     * @param widgetId
+     * @return whether a widget has a theme of its own
+     */
+    public boolean hasTheme(int widgetId)
     {
-    	String s = getVariable(PREF_SCROLLBUTTONS);
-    	if (s == null) return true; // set default to enabled
-    	else return s.equals("true");
+        return getVariable(THEME_KEY + widgetId) != null;
     }
     
-    public void setScrollButtons(boolean b)
+    /**
+     * Marks a widget as having a theme of its own, its preferences are then
+     * read from its own keys rather than the global ones
+     * @param widgetId
+     */
+    public void setHasTheme(int widgetId)
     {
-    	setBoolVariable(PREF_SCROLLBUTTONS, b);
+        setBoolVariable(THEME_KEY + widgetId, true);
     }
     
     /**
-     * Adds a note to the database
-     * 
-     * @param name
-     * @param value
+     * Removes a widget's own theme, it goes back to using the global theme
+     * @param widgetId
      */
-    public void addNote(Note n)
+    public void deleteTheme(int widgetId)
     {
-        String sql = "REPLACE INTO " + NOTE_TABLE_NAME + " (list, name, status, created) VALUES (?, ?,?,?)";
+        String[] keys = new String[] { PREF_SIZE, PREF_BACKGROUND, PREF_ICONS, PREF_COLOR_ACTIVE, PREF_COLOR_FINISHED, PREF_SCROLLBUTTONS };
+        
+        StringBuilder sql = new StringBuilder("DELETE FROM " + VARIABLE_TABLE_NAME + " WHERE name IN (?");
+        Object[] args = new Object[keys.length + 1];
+        args[0] = THEME_KEY + widgetId;
+        for (int i = 0; i < keys.length; i++)
+        {
+            sql.append(",?");
+            args[i + 1] = themeKey(keys[i], widgetId);
+        }
+        sql.append(")");
         
         try
         {
@@ -351,12 +642,12 @@ public class ToDoDatabase extends SQLiteOpenHelper
             db.beginTransaction();
             try
             {
-                db.execSQL(sql, new Object[] { n.list, n.text, n.status, n.created });
+                db.execSQL(sql.toString(), args);
                 db.setTransactionSuccessful();
             }
             catch (Exception e)
             {
-                Log.e(LOG_TAG, "Error writing note to database [" + n.text + "]", e);
+                writeFailed("Error removing theme of widget " + widgetId, e);
             }
             finally
             {
@@ -365,86 +656,64 @@ public class ToDoDatabase extends SQLiteOpenHelper
         }
         catch (Exception e) 
         {
-            Log.e(LOG_TAG, "Unable to open database for writing", e);
+            writeFailed("Unable to open database for writing", e);
         }
     }
     
-    /**
-     * Update a given note in the database 
-     * @param n
-     */
-    public void updateNote(Note n)
+    private static String themeKey(String name, int widgetId)
     {
-        if (n.isNew()) addNote(n);
-        else
-        {
-            String sql = "REPLACE INTO " + NOTE_TABLE_NAME + " (rowid, list, name, status) VALUES (?,?,?,?)";
-            
-            try
-            {
-                SQLiteDatabase db = this.getWritableDatabase();
+        if (widgetId == GLOBAL_THEME) return name;
+        return name + "_" + widgetId;
+    }
     
-                db.beginTransaction();
-                try
-                {
-                    Log.i(LOG_TAG,"Saving status of "+n.text+" to "+n.status);
-                    db.execSQL(sql, new Object[] { n.id, n.list, n.text, n.status.getCode() });
-                    db.setTransactionSuccessful();
-                }
-                catch (Exception e)
-                {
-                    Log.e(LOG_TAG, "Error writing note to database [" + n.text + "]", e);
-                }
-                finally
-                {
-                    db.endTransaction();
-                }
-            }
-            catch (Exception e) 
-            {
-                Log.e(LOG_TAG, "Unable to open database for writing", e);
-            }
-        }
+    public int getOffset(int widgetId)
+    {
+    	int i = getIntVariable(FIELD_OFFSET+widgetId);
+    	if (i < 1) return 0;
+    	return i;
+    }
+    
+    public void setOffset(int widgetId, int offset)
+    {
+    	if (offset <= 0) offset = 0;
+    	setIntVariable(FIELD_OFFSET+widgetId, offset);
+    }
+    
+    public void deleteOffset(int widgetId)
+    {
+    	deleteVariable(FIELD_OFFSET+widgetId);
     }
     
     /**
-     * Retrieve a note based on the note id
-     * @param noteId
-     * @return
+     * Reads the scroll offsets of every widget in a single query
+     * @return map of widget id to offset
      */
-    public Note getNote(int noteId)
+    public HashMap<Integer,Integer> getAllOffsets()
     {
-        String[] cols = new String[] { "list", "name", "status", "created" };
-        String[] whereArgs = new String[] { noteId+"" };
+        HashMap<Integer,Integer> offsets = new HashMap<Integer,Integer>();
+        
+        String[] cols = new String[] { "name", "value" };
+        String[] whereArgs = new String[] { FIELD_OFFSET + "%" };
 
         Cursor c = null;
 
         try
         {
-            SQLiteDatabase db = this.getReadableDatabase();
-            c = db.query(NOTE_TABLE_NAME, cols,
-                    "rowid=?", whereArgs, null, null, null);
-            boolean hasResult = c.moveToFirst();
-            if (hasResult && !c.isNull(0))
+            SQLiteDatabase db = this.getReaderDatabase();
+            c = db.query(VARIABLE_TABLE_NAME, cols, "name LIKE ?", whereArgs, null, null, null);
+            while (c.moveToNext())
             {
-                Note n = new Note(c.getInt(0));
-                n.id = noteId;
-                n.text = c.getString(1);
-                n.status = Status.get(c.getInt(2));
-                if (n.status == null) n.status = Status.CREATED;
-                n.created = c.getLong(3);
-                return n;
+                try
+                {
+                    int widgetId = Integer.parseInt(c.getString(0).substring(FIELD_OFFSET.length()));
+                    offsets.put(widgetId, Integer.parseInt(c.getString(1)));
+                }
+                catch (NumberFormatException nfe) { /* skip corrupt entries */ }
             }
-            c.close();
-            db.close();
-        }
-        catch (IllegalStateException e)
-        {
-            Log.e(LOG_TAG, "Hi - caught you", e);
         }
         catch (Exception e)
         {
-            Log.e(LOG_TAG, "Error getting note [" + noteId + "]", e);
+            Log.e(LOG_TAG, "Error getting offsets", e);
         }
         finally
         {
@@ -460,21 +729,17 @@ public class ToDoDatabase extends SQLiteOpenHelper
                 }
             }
         }
-        
-        Log.w(LOG_TAG, "c: "+ c.isClosed() + " : " + c.toString());
-
-        c = null;
-        
-        return null;
+        return offsets;
     }
-
+    
     /**
-     * Deletes a given note
-     * @param n
+     * Writes a set of scroll offsets in one transaction
+     * @param offsets map of widget id to offset
      */
-    public void deleteNote(Note n)
+    public void setOffsets(Map<Integer,Integer> offsets)
     {
-        String sql = "DELETE FROM " + NOTE_TABLE_NAME + " WHERE rowid = ?";
+        String sql = "REPLACE INTO " + VARIABLE_TABLE_NAME
+                + " (name,value) VALUES (?,?)";
         
         try
         {
@@ -483,12 +748,15 @@ public class ToDoDatabase extends SQLiteOpenHelper
             db.beginTransaction();
             try
             {
-                db.execSQL(sql, new Object[] { n.id });
+                for (Map.Entry<Integer,Integer> e : offsets.entrySet())
+                {
+                    db.execSQL(sql, new Object[] { FIELD_OFFSET + e.getKey(), e.getValue() + "" });
+                }
                 db.setTransactionSuccessful();
             }
             catch (Exception e)
             {
-                Log.e(LOG_TAG, "Error removing note from database [" + n.text + "]", e);
+                writeFailed("Error writing offsets to database", e);
             }
             finally
             {
@@ -497,18 +765,32 @@ public class ToDoDatabase extends SQLiteOpenHelper
         }
         catch (Exception e) 
         {
-            Log.e(LOG_TAG, "Unable to open database for writing", e);
+            writeFailed("Unable to open database for writing", e);
         }
     }
-
+    
+    public boolean getScrollButtons(int widgetId)
+    {
+    	String s = getVariable(themeKey(PREF_SCROLLBUTTONS, widgetId));
+    	if (s == null) return true; // set default to enabled
+    	else return s.equals("true");
+    }
+    
+    public void setScrollButtons(int widgetId, boolean b)
+    {
+    	setBoolVariable(themeKey(PREF_SCROLLBUTTONS, widgetId), b);
+    }
+    
     /**
-     * Delete all notes associated with a given list
-     * @param list
+     * Adds a note to the database, setting its id
+     * 
+     * @param n
+     * @return the id of the new note
      */
-    public void deleteAllNotes(int list)
+    public int addNote(Note n)
     {
-        String sql = "DELETE FROM " + NOTE_TABLE_NAME + " WHERE list = ?";
-        Log.d(LOG_TAG, "deleteAllNotes for " + list);
+        String sql = "REPLACE INTO " + NOTE_TABLE_NAME + " (list, name, status, created, position) VALUES (?, ?,?,?,?)";
+        
         try
         {
             SQLiteDatabase db = this.getWritableDatabase();
@@ -516,12 +798,16 @@ public class ToDoDatabase extends SQLiteOpenHelper
             db.beginTransaction();
             try
             {
-                db.execSQL(sql, new Object[] { list });
+                // new notes go to the end of the list
+                n.position = getLastPosition(db, n.list) + 1;
+                db.execSQL(sql, new Object[] { n.list, n.text, n.status.getCode(), n.created, n.position });
+                n.id = (int) DatabaseUtils.longForQuery(db, "SELECT last_insert_rowid()", null);
+                bumpListVersion(db, n.list);
                 db.setTransactionSuccessful();
             }
             catch (Exception e)
             {
-                Log.e(LOG_TAG, "Error removing all note from database for list " + list, e);
+                writeFailed("Error writing note to database [" + n.text + "]", e);
             }
             finally
             {
@@ -530,28 +816,849 @@ public class ToDoDatabase extends SQLiteOpenHelper
         }
         catch (Exception e) 
         {
-            Log.e(LOG_TAG, "Unable to open database for writing", e);
+            writeFailed("Unable to open database for writing", e);
         }
+        return n.id;
     }
     
     /**
-     * Get all notes for a given list id
-     * @param list
-     * @return
+     * Update a given note in the database 
+     * @param n
+     */
+    public void updateNote(Note n)
+    {
+        if (n.isNew()) addNote(n);
+        else
+        {
+            String sql = "UPDATE " + NOTE_TABLE_NAME + " SET list = ?, name = ?, status = ? WHERE rowid = ?";
+            
+            try
+            {
+                SQLiteDatabase db = this.getWritableDatabase();
+    
+                db.beginTransaction();
+                try
+                {
+                    Log.i(LOG_TAG,"Saving status of "+n.text+" to "+n.status);
+                    bumpNoteListVersion(db, n.id);
+                    db.execSQL(sql, new Object[] { n.list, n.text, n.status.getCode(), n.id });
+                    bumpListVersion(db, n.list);
+                    db.setTransactionSuccessful();
+                }
+                catch (Exception e)
+                {
+                    writeFailed("Error writing note to database [" + n.text + "]", e);
+                }
+                finally
+                {
+                    db.endTransaction();
+                }
+            }
+            catch (Exception e) 
+            {
+                writeFailed("Unable to open database for writing", e);
+            }
+        }
+    }
+    
+    /**
+     * Updates only the text of a note
+     * @param noteId
+     * @param text
+     */
+    public void updateText(int noteId, String text)
+    {
+        updateNoteColumn(noteId, "name", text);
+    }
+    
+    /**
+     * Updates only the status of a note
+     * @param noteId
+     * @param status
+     */
+    public void updateStatus(int noteId, Status status)
+    {
+        updateNoteColumn(noteId, "status", status.getCode());
+    }
+    
+    /**
+     * Moves a note to a different list
+     * @param noteId
+     * @param list
+     */
+    public void updateList(int noteId, int list)
+    {
+        updateNoteColumn(noteId, "list", list);
+    }
+    
+    /**
+     * Updates a single column of a note in place, leaving the rest of the
+     * row (including the created timestamp) untouched
+     * @param noteId
+     * @param column
+     * @param value
+     */
+    private void updateNoteColumn(int noteId, String column, Object value)
+    {
+        String sql = "UPDATE " + NOTE_TABLE_NAME + " SET " + column + " = ? WHERE rowid = ?";
+        
+        try
+        {
+            SQLiteDatabase db = this.getWritableDatabase();
+
+            db.beginTransaction();
+            try
+            {
+                // bump before and after, in case the note is changing lists
+                bumpNoteListVersion(db, noteId);
+                db.execSQL(sql, new Object[] { value, noteId });
+                if (column.equals("list")) bumpNoteListVersion(db, noteId);
+                db.setTransactionSuccessful();
+            }
+            catch (Exception e)
+            {
+                writeFailed("Error updating " + column + " of note [" + noteId + "]", e);
+            }
+            finally
+            {
+                db.endTransaction();
+            }
+        }
+        catch (Exception e) 
+        {
+            writeFailed("Unable to open database for writing", e);
+        }
+    }
+    
+    /**
+     * Flips the status of a note with a single in-place update and bumps
+     * the version of its list, all in one transaction.
+     * 
+     * @param noteId
+     * @return the note as it is after the toggle, <code>null</code> if it
+     *         doesn't exist
+     */
+    public Note toggleNote(int noteId)
+    {
+        String sql = "UPDATE " + NOTE_TABLE_NAME + " SET status = 1 - status WHERE rowid = ?";
+        String[] cols = new String[] { "list", "name", "status", "created", "position" };
+        String[] whereArgs = new String[] { noteId+"" };
+        
+        Note n = null;
+        Cursor c = null;
+        
+        try
+        {
+            SQLiteDatabase db = this.getWritableDatabase();
+
+            db.beginTransaction();
+            try
+            {
+                db.execSQL(sql, new Object[] { noteId });
+                
+                c = db.query(NOTE_TABLE_NAME, cols, "rowid=?", whereArgs, null, null, null);
+                if (c.moveToFirst())
+                {
+                    n = new Note(c.getInt(0));
+                    n.id = noteId;
+                    n.text = c.getString(1);
+                    n.status = Status.get(c.getInt(2));
+                    if (n.status == null) n.status = Status.CREATED;
+                    n.created = c.getLong(3);
+                    n.position = c.getDouble(4);
+                    
+                    bumpListVersion(db, n.list);
+                }
+                db.setTransactionSuccessful();
+            }
+            catch (Exception e)
+            {
+                writeFailed("Error toggling note [" + noteId + "]", e);
+                n = null;
+            }
+            finally
+            {
+                if (null != c) c.close();
+                db.endTransaction();
+            }
+        }
+        catch (Exception e) 
+        {
+            writeFailed("Unable to open database for writing", e);
+        }
+        return n;
+    }
+    
+    /**
+     * Moves a note to a new place in its list. Positions are fractional, so
+     * a note dropped between two others takes the midpoint of their
+     * positions and no other note has to be renumbered.
+     * @param noteId
+     * @param position
+     */
+    public void setPosition(int noteId, double position)
+    {
+        updateNoteColumn(noteId, "position", position);
+    }
+    
+    /**
+     * Spreads the positions of a list back out to whole numbers in the
+     * given order. Only needed once repeated drops in the same place have
+     * used up the precision between two positions.
+     * @param list
+     * @param ids every note of the list, in their new order, the first
+     *        gets position 1
+     */
+    public void renumberPositions(int list, int[] ids)
+    {
+        String sql = "UPDATE " + NOTE_TABLE_NAME + " SET position = ? WHERE rowid = ?";
+        
+        try
+        {
+            SQLiteDatabase db = this.getWritableDatabase();
+
+            db.beginTransaction();
+            try
+            {
+                for (int i = 0; i < ids.length; i++)
+                {
+                    db.execSQL(sql, new Object[] { i + 1, ids[i] });
+                }
+                bumpListVersion(db, list);
+                db.setTransactionSuccessful();
+            }
+            catch (Exception e)
+            {
+                writeFailed("Error renumbering list " + list, e);
+            }
+            finally
+            {
+                db.endTransaction();
+            }
+        }
+        catch (Exception e) 
+        {
+            writeFailed("Unable to open database for writing", e);
+        }
+    }
+    
+    private static double getLastPosition(SQLiteDatabase db, int list)
+    {
+        return doubleForQuery(db, "SELECT IFNULL(MAX(position), 0) FROM " + NOTE_TABLE_NAME + " WHERE list = ?", new String[] { list+"" });
+    }
+    
+    private static double doubleForQuery(SQLiteDatabase db, String sql, String[] args)
+    {
+        Cursor c = db.rawQuery(sql, args);
+        try
+        {
+            return c.moveToFirst() ? c.getDouble(0) : 0;
+        }
+        finally
+        {
+            c.close();
+        }
+    }
+    
+    /**
+     * Retrieve a note based on the note id
+     * @param noteId
+     * @return
+     */
+    public Note getNote(int noteId)
+    {
+        String[] cols = new String[] { "list", "name", "status", "created", "position" };
+        String[] whereArgs = new String[] { noteId+"" };
+
+        Cursor c = null;
+
+        try
+        {
+            SQLiteDatabase db = this.getReaderDatabase();
+            c = db.query(NOTE_TABLE_NAME, cols,
+                    "rowid=?", whereArgs, null, null, null);
+            boolean hasResult = c.moveToFirst();
+            if (hasResult && !c.isNull(0))
+            {
+                Note n = new Note(c.getInt(0));
+                n.id = noteId;
+                n.text = c.getString(1);
+                n.status = Status.get(c.getInt(2));
+                if (n.status == null) n.status = Status.CREATED;
+                n.created = c.getLong(3);
+                n.position = c.getDouble(4);
+                return n;
+            }
+            c.close();
+        }
+        catch (IllegalStateException e)
+        {
+            Log.e(LOG_TAG, "Hi - caught you", e);
+        }
+        catch (Exception e)
+        {
+            Log.e(LOG_TAG, "Error getting note [" + noteId + "]", e);
+        }
+        finally
+        {
+            if (null != c)
+            {
+                try
+                {
+                    c.close();
+                }
+                catch (Exception e)
+                {
+                    Log.e(LOG_TAG,"Error closing cursor",e);
+                }
+            }
+        }
+        
+        Log.w(LOG_TAG, "c: "+ c.isClosed() + " : " + c.toString());
+
+        c = null;
+        
+        return null;
+    }
+
+    /**
+     * Deletes a given note
+     * @param n
+     */
+    public void deleteNote(Note n)
+    {
+        String sql = "DELETE FROM " + NOTE_TABLE_NAME + " WHERE rowid = ?";
+        
+        try
+        {
+            SQLiteDatabase db = this.getWritableDatabase();
+
+            db.beginTransaction();
+            try
+            {
+                db.execSQL(sql, new Object[] { n.id });
+                bumpListVersion(db, n.list);
+                db.setTransactionSuccessful();
+            }
+            catch (Exception e)
+            {
+                writeFailed("Error removing note from database [" + n.text + "]", e);
+            }
+            finally
+            {
+                db.endTransaction();
+            }
+        }
+        catch (Exception e) 
+        {
+            writeFailed("Unable to open database for writing", e);
+        }
+    }
+
+    /**
+     * Delete all notes associated with a given list
+     * @param list
+     */
+    public void deleteAllNotes(int list)
+    {
+        String sql = "DELETE FROM " + NOTE_TABLE_NAME + " WHERE list = ?";
+        Log.d(LOG_TAG, "deleteAllNotes for " + list);
+        try
+        {
+            SQLiteDatabase db = this.getWritableDatabase();
+
+            db.beginTransaction();
+            try
+            {
+                db.execSQL(sql, new Object[] { list });
+                bumpListVersion(db, list);
+                db.setTransactionSuccessful();
+            }
+            catch (Exception e)
+            {
+                writeFailed("Error removing all note from database for list " + list, e);
+            }
+            finally
+            {
+                db.endTransaction();
+            }
+        }
+        catch (Exception e) 
+        {
+            writeFailed("Unable to open database for writing", e);
+        }
+    }
+    
+    /**
+     * Deletes all finished notes in a list
+     * @param list
+     */
+    public void deleteFinished(int list)
+    {
+        execNoteStatement("DELETE FROM " + NOTE_TABLE_NAME + " WHERE list = ? AND status = ?", 
+                "list = ?", new Object[] { list, Status.FINISHED.getCode() }, new Object[] { list });
+    }
+    
+    /**
+     * Sets the status of every note in a list
+     * @param list
+     * @param status
+     */
+    public void setAllStatus(int list, Status status)
+    {
+        execNoteStatement("UPDATE " + NOTE_TABLE_NAME + " SET status = ? WHERE list = ?", 
+                "list = ?", new Object[] { status.getCode(), list }, new Object[] { list });
+    }
+    
+    /**
+     * Deletes a set of notes
+     * @param ids
+     */
+    public void deleteNotes(int[] ids)
+    {
+        String in = inList(ids);
+        execNoteStatement("DELETE FROM " + NOTE_TABLE_NAME + " WHERE rowid IN " + in, 
+                "rowid IN " + in, new Object[0], new Object[0]);
+    }
+    
+    /**
+     * Sets the status of a set of notes
+     * @param ids
+     * @param status
+     */
+    public void setStatus(int[] ids, Status status)
+    {
+        String in = inList(ids);
+        execNoteStatement("UPDATE " + NOTE_TABLE_NAME + " SET status = ? WHERE rowid IN " + in, 
+                "rowid IN " + in, new Object[] { status.getCode() }, new Object[0]);
+    }
+    
+    /**
+     * Moves a set of notes to another list with a single update
+     * @param ids
+     * @param list the list to move them to
+     */
+    public void moveNotes(int[] ids, int list)
+    {
+        String in = inList(ids);
+        String sql = "UPDATE " + NOTE_TABLE_NAME + " SET list = ?, position = position + ? WHERE rowid IN " + in;
+        
+        try
+        {
+            SQLiteDatabase db = this.getWritableDatabase();
+
+            db.beginTransaction();
+            try
+            {
+                // the lists they're leaving, then the one they're joining
+                bumpListVersions(db, "rowid IN " + in, new Object[0]);
+                
+                // keep their order, but after the notes already in the list
+                double offset = getLastPosition(db, list) + 1;
+                offset -= doubleForQuery(db, "SELECT IFNULL(MIN(position), 0) FROM " + NOTE_TABLE_NAME + " WHERE rowid IN " + in, null);
+                db.execSQL(sql, new Object[] { list, offset });
+                bumpListVersion(db, list);
+                db.setTransactionSuccessful();
+            }
+            catch (Exception e)
+            {
+                writeFailed("Error moving notes to list " + list, e);
+            }
+            finally
+            {
+                db.endTransaction();
+            }
+        }
+        catch (Exception e) 
+        {
+            writeFailed("Unable to open database for writing", e);
+        }
+    }
+    
+    /**
+     * Runs one statement over the notes table in its own transaction,
+     * bumping the versions of the lists it touches
+     * @param sql
+     * @param where selects the notes affected, for the version bump
+     * @param args arguments for <code>sql</code>
+     * @param whereArgs arguments for <code>where</code>
+     */
+    private void execNoteStatement(String sql, String where, Object[] args, Object[] whereArgs)
+    {
+        try
+        {
+            SQLiteDatabase db = this.getWritableDatabase();
+
+            db.beginTransaction();
+            try
+            {
+                bumpListVersions(db, where, whereArgs);
+                db.execSQL(sql, args);
+                db.setTransactionSuccessful();
+            }
+            catch (Exception e)
+            {
+                writeFailed("Error updating notes [" + sql + "]", e);
+            }
+            finally
+            {
+                db.endTransaction();
+            }
+        }
+        catch (Exception e) 
+        {
+            writeFailed("Unable to open database for writing", e);
+        }
+    }
+    
+    /**
+     * Formats ids as an SQL list, e.g. (1,2,3). The ids are written inline
+     * rather than bound so large selections don't hit SQLite's limit on the
+     * number of bound parameters.
+     */
+    private static String inList(int[] ids)
+    {
+        StringBuilder sb = new StringBuilder("(");
+        for (int i = 0; i < ids.length; i++)
+        {
+            if (i > 0) sb.append(',');
+            sb.append(ids[i]);
+        }
+        return sb.append(")").toString();
+    }
+    
+    /**
+     * Writes a set of notes back to the state given by <code>to</code>, in one
+     * transaction. Notes only in <code>from</code> are deleted, notes only in
+     * <code>to</code> are re-inserted with their original ids and the rest
+     * have just the given columns updated in place, so changes made to other
+     * columns since, e.g. a toggle from the widget, are kept. Used to undo &
+     * redo journal operations.
+     * 
+     * @param from the notes as they currently are
+     * @param to the notes as they should be
+     * @param columns the columns the operation changed, any of
+     *        <code>list</code>, <code>name</code>, <code>status</code> and
+     *        <code>position</code>
+     */
+    public void applyNotes(Note[] from, Note[] to, String[] columns)
+    {
+        String deleteSql = "DELETE FROM " + NOTE_TABLE_NAME + " WHERE rowid = ?";
+        String insertSql = "INSERT OR REPLACE INTO " + NOTE_TABLE_NAME + " (rowid, list, name, status, created, position) VALUES (?,?,?,?,?,?)";
+        
+        StringBuilder update = new StringBuilder("UPDATE " + NOTE_TABLE_NAME + " SET ");
+        for (int i = 0; i < columns.length; i++)
+        {
+            if (i > 0) update.append(", ");
+            update.append(columns[i]).append(" = ?");
+        }
+        String updateSql = update.append(" WHERE rowid = ?").toString();
+        
+        // ids on each side, so matching the notes up is linear
+        HashMap<Integer,Note> fromIds = byId(from);
+        HashMap<Integer,Note> toIds = byId(to);
+        
+        try
+        {
+            SQLiteDatabase db = this.getWritableDatabase();
+
+            db.beginTransaction();
+            try
+            {
+                for (Note n : from)
+                {
+                    if (toIds.containsKey(n.id)) continue;
+                    bumpNoteListVersion(db, n.id);
+                    db.execSQL(deleteSql, new Object[] { n.id });
+                }
+                for (Note n : to)
+                {
+                    if (fromIds.containsKey(n.id))
+                    {
+                        if (columns.length == 0) continue;
+                        
+                        Object[] args = new Object[columns.length + 1];
+                        for (int i = 0; i < columns.length; i++)
+                        {
+                            args[i] = getColumn(n, columns[i]);
+                        }
+                        args[columns.length] = n.id;
+                        
+                        bumpNoteListVersion(db, n.id);
+                        db.execSQL(updateSql, args);
+                    }
+                    else
+                    {
+                        db.execSQL(insertSql, new Object[] { n.id, n.list, n.text, n.status.getCode(), n.created, n.position });
+                    }
+                    bumpListVersion(db, n.list);
+                }
+                db.setTransactionSuccessful();
+            }
+            catch (Exception e)
+            {
+                writeFailed("Error applying notes", e);
+            }
+            finally
+            {
+                db.endTransaction();
+            }
+        }
+        catch (Exception e) 
+        {
+            writeFailed("Unable to open database for writing", e);
+        }
+    }
+    
+    private static Object getColumn(Note n, String column)
+    {
+        if ("list".equals(column)) return n.list;
+        if ("name".equals(column)) return n.text;
+        if ("status".equals(column)) return n.status.getCode();
+        if ("position".equals(column)) return n.position;
+        throw new IllegalArgumentException("Unknown note column " + column);
+    }
+    
+    private static HashMap<Integer,Note> byId(Note[] notes)
+    {
+        HashMap<Integer,Note> ids = new HashMap<Integer,Note>(notes.length * 2);
+        for (Note n : notes) ids.put(n.id, n);
+        return ids;
+    }
+    
+    /**
+     * Whether an operation only changed the status of its notes, so can be
+     * stored as one {@link #JOURNAL_STATUS} row per note
+     */
+    private static boolean isStatusOnly(OperationJournal.Operation op)
+    {
+        if (op.type != OperationJournal.STATUS || op.before.length != op.after.length) return false;
+        for (int i = 0; i < op.before.length; i++)
+        {
+            if (op.before[i].id != op.after[i].id) return false;
+        }
+        return true;
+    }
+    
+    /**
+     * Reads back the saved undo history of a list
+     * @param list
+     * @param max maximum number of operations to return, the most recent are kept
+     * @return operations, oldest first
+     */
+    LinkedList<OperationJournal.Operation> getJournal(int list, int max)
+    {
+        LinkedList<OperationJournal.Operation> results = new LinkedList<OperationJournal.Operation>();
+        
+        String[] cols = new String[] { "op", "type", "side", "note", "name", "status", "created", "position", "note_list", "new_status" };
+        String[] whereArgs = new String[] { list+"" };
+        
+        Cursor c = null;
+
+        try
+        {
+            SQLiteDatabase db = this.getReaderDatabase();
+            c = db.query(JOURNAL_TABLE_NAME, cols, "list=?", whereArgs, null, null, "op, side, rowid");
+            
+            int op = -1;
+            int type = -1;
+            ArrayList<Note> before = new ArrayList<Note>();
+            ArrayList<Note> after = new ArrayList<Note>();
+            while (true)
+            {
+                boolean more = c.moveToNext();
+                
+                // finish off the previous operation
+                if (op != -1 && (!more || c.getInt(0) != op))
+                {
+                    OperationJournal.Operation o = new OperationJournal.Operation(op, type,
+                            before.toArray(new Note[before.size()]), after.toArray(new Note[after.size()]));
+                    o.persisted = true;
+                    results.addLast(o);
+                    if (results.size() > max) results.removeFirst();
+                    before.clear();
+                    after.clear();
+                }
+                if (!more) break;
+                
+                op = c.getInt(0);
+                type = c.getInt(1);
+                Note n = new Note(c.isNull(8) ? list : c.getInt(8));
+                n.id = c.getInt(3);
+                n.text = c.getString(4);
+                n.status = Status.get(c.getInt(5));
+                if (n.status == null) n.status = Status.CREATED;
+                n.created = c.getLong(6);
+                n.position = c.getDouble(7);
+                
+                int side = c.getInt(2);
+                if (side == JOURNAL_STATUS)
+                {
+                    // only the status is needed to undo or redo the change
+                    Note a = n.copy();
+                    a.status = Status.get(c.getInt(9));
+                    if (a.status == null) a.status = Status.CREATED;
+                    before.add(n);
+                    after.add(a);
+                }
+                else if (side == JOURNAL_BEFORE) before.add(n);
+                else after.add(n);
+            }
+        }
+        catch (Exception e)
+        {
+            Log.e(LOG_TAG, "Error reading journal for list " + list, e);
+        }
+        finally
+        {
+            if (null != c)
+            {
+                try
+                {
+                    c.close();
+                }
+                catch (Exception e)
+                {
+                    Log.e(LOG_TAG,"Error closing cursor",e);
+                }
+            }
+        }
+        return results;
+    }
+    
+    /**
+     * Saves changes to the undo history of a list in one transaction
+     * @param list
+     * @param ops operations not yet stored
+     * @param discarded ids of stored operations which have been undone
+     * @param oldest id of the oldest operation still retained, anything
+     *        older is removed
+     * @return <code>true</code> if the changes were saved
+     */
+    boolean writeJournal(int list, List<OperationJournal.Operation> ops, List<Integer> discarded, int oldest)
+    {
+        String deleteSql = "DELETE FROM " + JOURNAL_TABLE_NAME + " WHERE list = ? AND op = ?";
+        String insertSql = "INSERT INTO " + JOURNAL_TABLE_NAME 
+                + " (op, list, type, side, note, name, status, created, position, note_list) VALUES (?,?,?,?,?,?,?,?,?,?)";
+        String statusSql = "INSERT INTO " + JOURNAL_TABLE_NAME 
+                + " (op, list, type, side, note, status, note_list, new_status) VALUES (?,?,?,?,?,?,?,?)";
+        
+        boolean success = false;
+        try
+        {
+            SQLiteDatabase db = this.getWritableDatabase();
+
+            db.beginTransaction();
+            try
+            {
+                for (Integer op : discarded)
+                {
+                    db.execSQL(deleteSql, new Object[] { list, op });
+                }
+                for (OperationJournal.Operation op : ops)
+                {
+                    db.execSQL(deleteSql, new Object[] { list, op.id });
+                    if (isStatusOnly(op))
+                    {
+                        for (int i = 0; i < op.before.length; i++)
+                        {
+                            Note n = op.before[i];
+                            db.execSQL(statusSql, new Object[] { op.id, list, op.type, JOURNAL_STATUS, n.id, n.status.getCode(), n.list, op.after[i].status.getCode() });
+                        }
+                        continue;
+                    }
+                    for (Note n : op.before)
+                    {
+                        db.execSQL(insertSql, new Object[] { op.id, list, op.type, JOURNAL_BEFORE, n.id, n.text, n.status.getCode(), n.created, n.position, n.list });
+                    }
+                    for (Note n : op.after)
+                    {
+                        db.execSQL(insertSql, new Object[] { op.id, list, op.type, JOURNAL_AFTER, n.id, n.text, n.status.getCode(), n.created, n.position, n.list });
+                    }
+                }
+                db.execSQL("DELETE FROM " + JOURNAL_TABLE_NAME + " WHERE list = ? AND op < ?", new Object[] { list, oldest });
+                db.setTransactionSuccessful();
+                success = true;
+            }
+            catch (Exception e)
+            {
+                writeFailed("Error writing journal for list " + list, e);
+            }
+            finally
+            {
+                db.endTransaction();
+            }
+        }
+        catch (Exception e) 
+        {
+            writeFailed("Unable to open database for writing", e);
+        }
+        return success;
+    }
+    
+    /**
+     * Removes the undo history of a list
+     * @param list
+     */
+    public void deleteJournal(int list)
+    {
+        String sql = "DELETE FROM " + JOURNAL_TABLE_NAME + " WHERE list = ?";
+        
+        try
+        {
+            SQLiteDatabase db = this.getWritableDatabase();
+
+            db.beginTransaction();
+            try
+            {
+                db.execSQL(sql, new Object[] { list });
+                db.setTransactionSuccessful();
+            }
+            catch (Exception e)
+            {
+                writeFailed("Error removing journal for list " + list, e);
+            }
+            finally
+            {
+                db.endTransaction();
+            }
+        }
+        catch (Exception e) 
+        {
+            writeFailed("Unable to open database for writing", e);
+        }
+    }
+    
+    /**
+     * Get all notes for a given list id
+     * @param list
+     * @return
      */
     public LinkedList<Note> getAllNotes(int list)
+    {
+        return getNotes(list, 0, -1);
+    }
+    
+    /**
+     * Get a range of the notes for a given list id
+     * @param list
+     * @param offset index of the first note to return
+     * @param limit maximum number of notes to return, -1 for all
+     * @return
+     */
+    public LinkedList<Note> getNotes(int list, int offset, int limit)
     {
         LinkedList<Note> results = new LinkedList<Note>();
         
-        String[] cols = new String[] { "rowid", "name", "status", "created" };
+        String[] cols = new String[] { "rowid", "name", "status", "created", "position" };
         String[] whereArgs = new String[] { list+"" };
         
         Cursor c = null;
 
         try
         {
-            SQLiteDatabase db = this.getReadableDatabase();
-            c = db.query(NOTE_TABLE_NAME, cols, "list=?", whereArgs, null, null, null);
+            SQLiteDatabase db = this.getReaderDatabase();
+            c = db.query(NOTE_TABLE_NAME, cols, "list=?", whereArgs, null, null, "position", offset + "," + limit);
             while (c.moveToNext())
             {
                 Note n = new Note(list);
@@ -559,10 +1666,10 @@ public class ToDoDatabase extends SQLiteOpenHelper
                 n.text = c.getString(1);
                 n.status = Note.Status.get(c.getInt(2));
                 n.created = c.getLong(3);
+                n.position = c.getDouble(4);
                 results.add(n);
             }
             c.close();
-            db.close();
         }
         catch (Exception e)
         {
@@ -611,18 +1718,22 @@ public class ToDoDatabase extends SQLiteOpenHelper
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion)
     {
-        String upgradeKey = oldVersion + "-" + newVersion;
-        Log.i(LOG_TAG, "upgrading " + upgradeKey);
-
-        boolean success = false;
-        if (UPGRADE_SQL.containsKey(upgradeKey))
-        {
-            String[] sql = UPGRADE_SQL.get(upgradeKey).split("\n");
-            success = execMultipleSQL(db, sql);
-        }
-        if (!success)
+        // step through each version in turn
+        for (int v = oldVersion; v < newVersion; v++)
         {
-            Log.e(LOG_TAG, "Unable to upgrade the database (" + upgradeKey + ")");
+            String upgradeKey = v + "-" + (v + 1);
+            Log.i(LOG_TAG, "upgrading " + upgradeKey);
+    
+            boolean success = false;
+            if (UPGRADE_SQL.containsKey(upgradeKey))
+            {
+                String[] sql = UPGRADE_SQL.get(upgradeKey).split("\n");
+                success = execMultipleSQL(db, sql);
+            }
+            if (!success)
+            {
+                Log.e(LOG_TAG, "Unable to upgrade the database (" + upgradeKey + ")");
+            }
         }
     }
 
@@ -652,7 +1763,7 @@ public class ToDoDatabase extends SQLiteOpenHelper
         }
         catch (Exception e)
         {
-            Log.e(LOG_TAG, "Error with sql statement", e);
+            writeFailed("Error with sql statement", e);
         }
         finally
         {
@@ -665,6 +1776,11 @@ public class ToDoDatabase extends SQLiteOpenHelper
     public void close()
     {
         if (ToDoActivity.debug) Log.d(LOG_TAG, "Closing db");
+        if (reader != null)
+        {
+            reader.close();
+            reader = null;
+        }
         getWritableDatabase().close();
         super.close();
     }
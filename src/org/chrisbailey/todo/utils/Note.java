@@ -53,6 +53,9 @@ public class Note
     public Status status;
     public Long created;
     public int list;
+    
+    // sort key within the list, fractional so notes can be put between others
+    public double position;
     private static final int EMPTYNOTE = -1;
     
     public Note(int list)
@@ -64,4 +67,15 @@ public class Note
     }
     
     public boolean isNew() { return id == EMPTYNOTE; }
+    
+    public Note copy()
+    {
+        Note n = new Note(list);
+        n.id = id;
+        n.text = text;
+        n.status = status;
+        n.created = created;
+        n.position = position;
+        return n;
+    }
 }
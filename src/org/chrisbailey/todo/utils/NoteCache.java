@@ -0,0 +1,87 @@
+/*******************************************************************************
+ * ToDo List Widget - Android homescreen note taking application
+ * Copyright (C) 2011  Chris Bailey
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.chrisbailey.todo.utils;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+
+/**
+ * Process wide cache of the notes last rendered for each list, tagged with
+ * the list version they were read at (see
+ * {@link org.chrisbailey.todo.db.ToDoDatabase#getListVersion(int)}).
+ */
+public class NoteCache
+{
+    private static final HashMap<Integer,Entry> cache = new HashMap<Integer,Entry>();
+    
+    private static class Entry
+    {
+        int version;
+        LinkedList<Note> notes;
+    }
+    
+    /**
+     * Returns the cached notes for a list if they are at the given version
+     * @param list
+     * @param version
+     * @return the notes, <code>null</code> if nothing current is cached
+     */
+    public static synchronized LinkedList<Note> get(int list, int version)
+    {
+        Entry e = cache.get(list);
+        if (e == null || e.version != version) return null;
+        return e.notes;
+    }
+    
+    public static synchronized void put(int list, int version, LinkedList<Note> notes)
+    {
+        Entry e = new Entry();
+        e.version = version;
+        e.notes = notes;
+        cache.put(list, e);
+    }
+    
+    /**
+     * Patches a single changed note into the cache. The database bumps the
+     * list version by one for each write, so the cached version is moved on
+     * by one as well; if the cache was already stale it stays stale.
+     * @param n the note as it is now in the database
+     */
+    public static synchronized void update(Note n)
+    {
+        Entry e = cache.get(n.list);
+        if (e == null) return;
+        
+        for (Note cached : e.notes)
+        {
+            if (cached.id == n.id)
+            {
+                cached.text = n.text;
+                cached.status = n.status;
+                e.version++;
+                return;
+            }
+        }
+        cache.remove(n.list);
+    }
+    
+    public static synchronized void remove(int list)
+    {
+        cache.remove(list);
+    }
+}
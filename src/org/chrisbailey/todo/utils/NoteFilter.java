@@ -0,0 +1,166 @@
+/*******************************************************************************
+ * ToDo List Widget - Android homescreen note taking application
+ * Copyright (C) 2011  Chris Bailey
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.chrisbailey.todo.utils;
+
+import java.util.List;
+
+/**
+ * Case insensitive text filter over a list of notes. Results are positions in
+ * the list, so a filtered view can map its rows straight onto the notes.
+ * 
+ * When the query only grows (the usual case while typing) the previous
+ * matches are narrowed down rather than the whole list being scanned again.
+ * The lower cased text of each note is kept as an index, which has to be
+ * thrown away with {@link #invalidate()} whenever the notes change.
+ */
+public class NoteFilter
+{
+    private List<Note> notes;
+    
+    // lower cased text of each note, by position
+    private String[] index;
+    
+    private String query = "";
+    private int[] matches = new int[0];
+    private int count;
+    
+    public NoteFilter(List<Note> notes)
+    {
+        this.notes = notes;
+    }
+    
+    /**
+     * Filters a different list of notes with the current query
+     * @param notes
+     */
+    public void setNotes(List<Note> notes)
+    {
+        this.notes = notes;
+        invalidate();
+    }
+    
+    /**
+     * Drops the index and matches after the notes have changed, they are
+     * rebuilt from scratch by the next {@link #filter(String)}
+     */
+    public void invalidate()
+    {
+        index = null;
+        if (isActive()) filter(query);
+    }
+    
+    /**
+     * Notes that the text of a note was edited. The matches are left as they
+     * are, so the note being typed into doesn't vanish, and the index is
+     * rebuilt on the next {@link #filter(String)}.
+     */
+    public void textChanged()
+    {
+        index = null;
+    }
+    
+    /**
+     * @return whether any notes are being filtered out
+     */
+    public boolean isActive()
+    {
+        return query.length() > 0;
+    }
+    
+    public String getQuery()
+    {
+        return query;
+    }
+    
+    /**
+     * @return the number of matching notes
+     */
+    public int size()
+    {
+        return isActive() ? count : notes.size();
+    }
+    
+    /**
+     * @param position position among the matches
+     * @return the position of the note in the full list
+     */
+    public int get(int position)
+    {
+        return isActive() ? matches[position] : position;
+    }
+    
+    /**
+     * Updates the matches for a new query
+     * @param q
+     */
+    public void filter(String q)
+    {
+        q = q.toLowerCase();
+        
+        if (q.length() == 0)
+        {
+            query = q;
+            count = 0;
+            return;
+        }
+        
+        if (index == null)
+        {
+            buildIndex();
+            scan(q);
+        }
+        else if (isActive() && q.startsWith(query))
+        {
+            // anything matching the longer query matched the shorter one
+            refine(q);
+        }
+        else scan(q);
+        
+        query = q;
+    }
+    
+    private void buildIndex()
+    {
+        index = new String[notes.size()];
+        int i = 0;
+        for (Note n : notes)
+        {
+            index[i++] = n.text == null ? "" : n.text.toLowerCase();
+        }
+        if (matches.length < index.length) matches = new int[index.length];
+    }
+    
+    private void scan(String q)
+    {
+        count = 0;
+        for (int i = 0; i < index.length; i++)
+        {
+            if (index[i].contains(q)) matches[count++] = i;
+        }
+    }
+    
+    private void refine(String q)
+    {
+        int kept = 0;
+        for (int i = 0; i < count; i++)
+        {
+            if (index[matches[i]].contains(q)) matches[kept++] = matches[i];
+        }
+        count = kept;
+    }
+}
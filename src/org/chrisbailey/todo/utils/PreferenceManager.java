@@ -26,8 +26,9 @@ import org.chrisbailey.todo.activities.ToDoActivity;
 import org.chrisbailey.todo.db.ToDoDatabase;
 
 import android.content.Context;
+import android.content.res.TypedArray;
 import android.util.Log;
-import android.widget.TextView;
+import android.util.TypedValue;
 
 public class PreferenceManager 
 {
@@ -36,6 +37,9 @@ public class PreferenceManager
     public static final String FINISHED_DRAWABLE_PREFIX = "icon_finished_";
     
     private static final String LOG_TAG = "ReferenceManager";
+    
+    // a TextView's own text size, in pixels, if the theme doesn't give one
+    private static final int DEFAULT_TEXT_SIZE = 15;
 
     private int currentBackground = -1;
     private int currentBackgroundRef = -1;
@@ -49,40 +53,163 @@ public class PreferenceManager
     private int defaultPadding = 1;
     private int topPadding = defaultPadding;
     
+    // which preferences have changed since they were loaded or saved
+    private static final int DIRTY_BACKGROUND = 1;
+    private static final int DIRTY_ICON = 2;
+    private static final int DIRTY_ACTIVE_COLOR = 4;
+    private static final int DIRTY_FINISHED_COLOR = 8;
+    private static final int DIRTY_SIZE = 16;
+    private static final int DIRTY_SCROLL_BUTTONS = 32;
+    private static final int DIRTY_ALL = 63;
+    // switched between the widget's own theme & the global one
+    private static final int DIRTY_THEME = 64;
+    private int dirty = 0;
+    
+    // the widget this is the theme of, or ToDoDatabase.GLOBAL_THEME
+    private final int widgetId;
+    
+    // whether the widget has its own theme rather than the global one
+    private boolean widgetOnly;
+    
+    /**
+     * Loads the global theme
+     */
     public PreferenceManager(Context c, ToDoDatabase db)
     {
-        setBackground(db.getPrefBackground());
+        this(c, db, ToDoDatabase.GLOBAL_THEME);
+    }
+    
+    /**
+     * Loads the theme of a widget, its own if it has one, otherwise the
+     * global theme
+     */
+    public PreferenceManager(Context c, ToDoDatabase db, int widgetId)
+    {
+        this.widgetId = widgetId;
+        widgetOnly = widgetId != ToDoDatabase.GLOBAL_THEME && db.hasTheme(widgetId);
+        load(c, db, widgetOnly ? widgetId : ToDoDatabase.GLOBAL_THEME);
+    }
+    
+    private void load(Context c, ToDoDatabase db, int themeId)
+    {
+        setBackground(db.getPrefBackground(themeId));
 
-        setIcons(db.getPrefIcon());
+        setIcons(db.getPrefIcon(themeId));
         
-        int i = db.getPrefColorActive();
+        int i = db.getPrefColorActive(themeId);
         if (i == 0) i = c.getResources().getColor(R.color.default_active_color);
         setActiveColor(i);
         
-        i = db.getPrefColorFinished();
+        i = db.getPrefColorFinished(themeId);
         if (i == 0) i = c.getResources().getColor(R.color.default_finished_color);
         setFinishedColor(i);
         
-        i = db.getPrefSize();
-        if (i == -1) i = (int) new TextView(c).getTextSize();
+        i = db.getPrefSize(themeId);
+        if (i == -1) i = getDefaultSize(c);
         setSize(i);
         
-        scrollButtons = db.getScrollButtons();
+        scrollButtons = db.getScrollButtons(themeId);
+        
+        // nothing has changed yet
+        dirty = 0;
+    }
+    
+    /**
+     * Returns the text size a plain TextView would have, read from the theme
+     * so no View is built, as themes may be loaded off the UI thread
+     */
+    private static int getDefaultSize(Context c)
+    {
+        int size = DEFAULT_TEXT_SIZE;
+        TypedValue appearance = new TypedValue();
+        if (c.getTheme().resolveAttribute(android.R.attr.textAppearanceSmall, appearance, true))
+        {
+            TypedArray a = c.obtainStyledAttributes(appearance.resourceId, new int[] { android.R.attr.textSize });
+            size = a.getDimensionPixelSize(0, size);
+            a.recycle();
+        }
+        return size;
+    }
+    
+    public int getWidgetId()
+    {
+        return widgetId;
+    }
+    
+    /**
+     * @return whether this is a widget's own theme
+     */
+    public boolean isWidgetOnly()
+    {
+        return widgetOnly;
+    }
+    
+    /**
+     * Switches between the widget's own theme and the global one. A new
+     * widget theme starts as a copy of the current values, switching back
+     * reloads the global theme. Nothing is written until {@link #save}.
+     */
+    public void setWidgetOnly(Context c, ToDoDatabase db, boolean b)
+    {
+        if (b == widgetOnly || widgetId == ToDoDatabase.GLOBAL_THEME) return;
+        
+        widgetOnly = b;
+        if (b)
+        {
+            dirty = DIRTY_ALL | DIRTY_THEME;
+        }
+        else
+        {
+            load(c, db, ToDoDatabase.GLOBAL_THEME);
+            dirty = DIRTY_THEME;
+        }
+    }
+    
+    /**
+     * @return whether any preference has changed since it was loaded or saved
+     */
+    public boolean isDirty()
+    {
+        return dirty != 0;
     }
     
     /**
-     * Save state to database
+     * Save the changed preferences to the database, in one transaction
      * @param db
+     * @return <code>true</code> if anything was written, i.e. the widgets
+     *         need redrawing
      */
-    public void save(ToDoDatabase db)
+    public boolean save(ToDoDatabase db)
     {
-        if (ToDoActivity.debug) Log.i(LOG_TAG, "Saving: bg:" + currentBackground + " icon:" + currentIcon + " Acolor:"+currentActiveColor+" Fcolor:"+currentFinishedColor+" size:"+currentSize);
-        db.setPrefBackground(currentBackground);
-        db.setPrefColorActive(currentActiveColor);
-        db.setPrefColorFinished(currentFinishedColor);
-        db.setPrefIcon(currentIcon);
-        db.setPrefSize(currentSize);
-        db.setScrollButtons(scrollButtons);
+        if (dirty == 0) return false;
+        
+        if (ToDoActivity.debug) Log.i(LOG_TAG, "Saving (" + dirty + "): bg:" + currentBackground + " icon:" + currentIcon + " Acolor:"+currentActiveColor+" Fcolor:"+currentFinishedColor+" size:"+currentSize);
+        final int changed = dirty;
+        final int themeId = widgetOnly ? widgetId : ToDoDatabase.GLOBAL_THEME;
+        boolean saved = db.batch(new ToDoDatabase.Batch()
+        {
+            public void run(ToDoDatabase db)
+            {
+                if ((changed & DIRTY_THEME) != 0)
+                {
+                    if (widgetOnly) db.setHasTheme(widgetId);
+                    else db.deleteTheme(widgetId);
+                }
+                if ((changed & DIRTY_BACKGROUND) != 0) db.setPrefBackground(themeId, currentBackground);
+                if ((changed & DIRTY_ACTIVE_COLOR) != 0) db.setPrefColorActive(themeId, currentActiveColor);
+                if ((changed & DIRTY_FINISHED_COLOR) != 0) db.setPrefColorFinished(themeId, currentFinishedColor);
+                if ((changed & DIRTY_ICON) != 0) db.setPrefIcon(themeId, currentIcon);
+                if ((changed & DIRTY_SIZE) != 0) db.setPrefSize(themeId, currentSize);
+                if ((changed & DIRTY_SCROLL_BUTTONS) != 0) db.setScrollButtons(themeId, scrollButtons);
+            }
+        });
+        if (saved)
+        {
+            dirty = 0;
+            ThemeCache.invalidate(themeId);
+            if ((changed & DIRTY_THEME) != 0) ThemeCache.invalidate(widgetId);
+        }
+        return saved;
     }
     
     public int getTopPadding()
@@ -92,6 +219,7 @@ public class PreferenceManager
     
     public void setSize(int i)
     {
+        if (i != currentSize) dirty |= DIRTY_SIZE;
         currentSize = i;
     }
     
@@ -112,6 +240,7 @@ public class PreferenceManager
     
     public void setActiveColor(int i)
     {
+        if (i != currentActiveColor) dirty |= DIRTY_ACTIVE_COLOR;
         currentActiveColor = i;
     }
     
@@ -122,6 +251,7 @@ public class PreferenceManager
     
     public void setFinishedColor(int i)
     {
+        if (i != currentFinishedColor) dirty |= DIRTY_FINISHED_COLOR;
         currentFinishedColor = i;
     }
     
@@ -172,12 +302,14 @@ public class PreferenceManager
     public void setBackground(int i)
     {
         if (i < 0) i = 1;
+        if (i != currentBackground) dirty |= DIRTY_BACKGROUND;
         currentBackground = i;
         currentBackgroundRef = getBackgroundRef(currentBackground);
     }
     public void setIcons(int i)
     {
         if (i < 0) i = 1;
+        if (i != currentIcon) dirty |= DIRTY_ICON;
         currentIcon = i;
         activeIconRef = getActiveIconRef(currentIcon);
         finishedIconRef = getFinishedIconRef(currentIcon);
@@ -227,34 +359,60 @@ public class PreferenceManager
     }
     private int getBackgroundRef(int i)
     {
-        return getDrawableField(i, BACKGROUND_DRAWABLE_PREFIX); 
+        Field f = findDrawableField(i, BACKGROUND_DRAWABLE_PREFIX);
+        if (f == null) return -1;
+        
+        // background names end with their top padding, e.g. background_5_1
+        topPadding = defaultPadding;
+        String name = f.getName();
+        try
+        {
+            topPadding = Integer.parseInt(name.substring(name.lastIndexOf("_")+1));
+        }
+        catch (NumberFormatException e)
+        {
+            Log.e(LOG_TAG,"No padding in " + name,e);
+        }
+        return getFieldValue(f);
     }
     
+    /**
+     * Looks up a drawable by number, e.g. 5 and {@link #BACKGROUND_DRAWABLE_PREFIX}
+     * gives R.drawable.background_5_1. Has no side effects.
+     * @param i
+     * @param field the drawable name prefix
+     * @return the drawable reference, -1 if there isn't one
+     */
     public int getDrawableField(int i, String field)
     {
-        try 
-        {
-        	if (field.equals(BACKGROUND_DRAWABLE_PREFIX)) field = field + i + "_";
-        	else field = field + i;
-        	
-        	if (ToDoActivity.debug) Log.i(LOG_TAG,"Looking for " + field);
+        Field f = findDrawableField(i, field);
+        return f == null ? -1 : getFieldValue(f);
+    }
+    
+    private Field findDrawableField(int i, String field)
+    {
+    	if (field.equals(BACKGROUND_DRAWABLE_PREFIX)) field = field + i + "_";
+    	else field = field + i;
+    	
+    	if (ToDoActivity.debug) Log.i(LOG_TAG,"Looking for " + field);
 
-        	Field [] fields = R.drawable.class.getFields();
-            for (Field f : fields)
+    	Field [] fields = R.drawable.class.getFields();
+        for (Field f : fields)
+        {
+            if (f.getName().startsWith(field))
             {
-                if (f.getName().startsWith(field))
-                {
-                	if (ToDoActivity.debug) Log.i(LOG_TAG,"Getting field " + f.getName());
-                    String name = f.getName().replace(field,"");
-                    
-                    if (name.length() > 0)
-                    {
-                        name = name.substring(name.lastIndexOf("_")+1); // remove leading _
-                        topPadding = Integer.parseInt(name);
-                    }
-                    return f.getInt(null);
-                }
+            	if (ToDoActivity.debug) Log.i(LOG_TAG,"Getting field " + f.getName());
+                return f;
             }
+        }
+        return null;
+    }
+    
+    private int getFieldValue(Field f)
+    {
+        try 
+        {
+            return f.getInt(null);
         } catch (Exception e)
         {
             Log.e(LOG_TAG,"Error obtaining drawable",e);
@@ -274,6 +432,7 @@ public class PreferenceManager
     
     public void setScrollButtons(boolean b)
     {
+    	if (b != scrollButtons) dirty |= DIRTY_SCROLL_BUTTONS;
     	scrollButtons = b;
     }
 }
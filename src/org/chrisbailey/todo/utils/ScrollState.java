@@ -0,0 +1,126 @@
+/*******************************************************************************
+ * ToDo List Widget - Android homescreen note taking application
+ * Copyright (C) 2011  Chris Bailey
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.chrisbailey.todo.utils;
+
+import java.util.HashMap;
+import java.util.HashSet;
+
+import org.chrisbailey.todo.ToDoWidget2x2.MOVE;
+import org.chrisbailey.todo.activities.ToDoActivity;
+import org.chrisbailey.todo.db.ToDoDatabase;
+
+import android.util.Log;
+
+/**
+ * Process wide scroll offsets for all widgets.
+ * 
+ * Offsets are read from the database once per process and then held in
+ * memory. A change is written back by {@link #flush(ToDoDatabase)} on the
+ * connection the widget was drawn with, before the broadcast that moved it
+ * returns, as the process may be killed as soon as it has.
+ */
+public class ScrollState
+{
+    private static final String LOG_TAG = "ScrollState";
+    
+    private static final HashMap<Integer,Integer> offsets = new HashMap<Integer,Integer>();
+    private static final HashSet<Integer> dirty = new HashSet<Integer>();
+    private static boolean loaded = false;
+    
+    /**
+     * Returns the current offset for a widget, loading all offsets from
+     * the database on the first call in this process
+     */
+    public static synchronized int getOffset(ToDoDatabase db, int widgetId)
+    {
+        load(db);
+        Integer i = offsets.get(widgetId);
+        return i == null ? 0 : i;
+    }
+    
+    /**
+     * Applies a scroll move to the widget's offset, it is kept until the
+     * next {@link #flush(ToDoDatabase)}
+     * 
+     * @param db
+     * @param widgetId
+     * @param move direction of the move
+     * @param count number of notes in the list
+     * @param page number of rows visible in the widget
+     * @return the new offset
+     */
+    public static synchronized int move(ToDoDatabase db, int widgetId, MOVE move, int count, int page)
+    {
+        int offset = getOffset(db, widgetId);
+        int last = count > 0 ? count - 1 : 0;
+        
+        switch (move)
+        {
+            case UP:        offset--;           break;
+            case DOWN:      offset++;           break;
+            case PAGE_UP:   offset -= page;     break;
+            case PAGE_DOWN: offset += page;     break;
+            case TOP:       offset = 0;         break;
+            case BOTTOM:    offset = last;      break;
+            default:                            break;
+        }
+        
+        // stop moving into negative numbers & don't scroll past last item
+        if (offset > last) offset = last;
+        if (offset < 0) offset = 0;
+        
+        if (move != MOVE.NONE && offset != getOffset(db, widgetId))
+        {
+            offsets.put(widgetId, offset);
+            dirty.add(widgetId);
+        }
+        return offset;
+    }
+    
+    /**
+     * Forgets a deleted widget's offset
+     */
+    public static synchronized void remove(int widgetId)
+    {
+        offsets.remove(widgetId);
+        dirty.remove(widgetId);
+    }
+    
+    /**
+     * Writes any changed offsets to the database in one transaction
+     * @param db an open connection, which is left open
+     */
+    public static synchronized void flush(ToDoDatabase db)
+    {
+        if (dirty.isEmpty()) return;
+        
+        HashMap<Integer,Integer> changed = new HashMap<Integer,Integer>();
+        for (Integer id : dirty) changed.put(id, offsets.get(id));
+        dirty.clear();
+        
+        if (ToDoActivity.debug) Log.i(LOG_TAG, "Persisting " + changed.size() + " offsets");
+        db.setOffsets(changed);
+    }
+    
+    private static void load(ToDoDatabase db)
+    {
+        if (loaded) return;
+        offsets.putAll(db.getAllOffsets());
+        loaded = true;
+    }
+}
@@ -0,0 +1,62 @@
+/*******************************************************************************
+ * ToDo List Widget - Android homescreen note taking application
+ * Copyright (C) 2011  Chris Bailey
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.chrisbailey.todo.utils;
+
+import java.util.HashMap;
+
+import org.chrisbailey.todo.db.ToDoDatabase;
+
+import android.content.Context;
+
+/**
+ * Process wide cache of the theme each widget is drawn with, so a render
+ * costs one lookup however many widgets or overrides there are. Entries are
+ * dropped by {@link PreferenceManager#save(ToDoDatabase)} when a theme
+ * changes. The cached themes are shared, so must not be modified.
+ */
+public class ThemeCache
+{
+    private static final HashMap<Integer,PreferenceManager> cache = new HashMap<Integer,PreferenceManager>();
+    
+    /**
+     * @param c
+     * @param db used to load the theme if it isn't cached
+     * @param widgetId
+     * @return the theme of the widget, its own or the global one
+     */
+    public static synchronized PreferenceManager get(Context c, ToDoDatabase db, int widgetId)
+    {
+        PreferenceManager pm = cache.get(widgetId);
+        if (pm == null)
+        {
+            pm = new PreferenceManager(c, db, widgetId);
+            cache.put(widgetId, pm);
+        }
+        return pm;
+    }
+    
+    /**
+     * Drops a widget's theme, or every theme if the global theme changed
+     * @param widgetId widget id or {@link ToDoDatabase#GLOBAL_THEME}
+     */
+    public static synchronized void invalidate(int widgetId)
+    {
+        if (widgetId == ToDoDatabase.GLOBAL_THEME) cache.clear();
+        else cache.remove(widgetId);
+    }
+}
@@ -0,0 +1,93 @@
+/*******************************************************************************
+ * ToDo List Widget - Android homescreen note taking application
+ * Copyright (C) 2011  Chris Bailey
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.chrisbailey.todo.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.drawable.Drawable;
+
+/**
+ * Process wide, least recently used, cache of drawables pre-rendered at the
+ * size they're shown in the preferences galleries, so flinging a gallery
+ * only ever draws small bitmaps. Thumbnails are keyed by drawable id, each
+ * drawable is only ever shown at one size.
+ */
+public class ThumbnailCache
+{
+    // enough for every background & icon, with room to spare
+    private static final int MAX_ENTRIES = 32;
+    
+    private static final LinkedHashMap<Integer,Bitmap> cache = new LinkedHashMap<Integer,Bitmap>(MAX_ENTRIES, 0.75f, true)
+    {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer,Bitmap> eldest)
+        {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    
+    /**
+     * @param drawableId
+     * @return the thumbnail, <code>null</code> if it hasn't been rendered
+     */
+    public static synchronized Bitmap get(int drawableId)
+    {
+        return cache.get(drawableId);
+    }
+    
+    public static synchronized void put(int drawableId, Bitmap thumbnail)
+    {
+        cache.put(drawableId, thumbnail);
+    }
+    
+    /**
+     * Renders a drawable into a bitmap of the given size, centred and keeping
+     * its aspect ratio. Nine-patches are stretched by their bounds rather than
+     * scaled, as they are in the widget. Safe to call off the ui thread.
+     * 
+     * @param res
+     * @param drawableId
+     * @param width
+     * @param height
+     * @param fit scale small drawables up to fill the thumbnail, otherwise
+     *        they are only ever scaled down
+     * @return
+     */
+    public static Bitmap render(Resources res, int drawableId, int width, int height, boolean fit)
+    {
+        Drawable d = res.getDrawable(drawableId);
+        
+        int w = d.getIntrinsicWidth() > 0 ? d.getIntrinsicWidth() : width;
+        int h = d.getIntrinsicHeight() > 0 ? d.getIntrinsicHeight() : height;
+        float scale = Math.min((float) width / w, (float) height / h);
+        if (!fit) scale = Math.min(scale, 1);
+        w = (int) (w * scale);
+        h = (int) (h * scale);
+        
+        Bitmap b = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        d.setBounds((width - w) / 2, (height - h) / 2, (width + w) / 2, (height + h) / 2);
+        d.draw(new Canvas(b));
+        return b;
+    }
+}
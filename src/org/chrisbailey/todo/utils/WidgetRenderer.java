@@ -0,0 +1,256 @@
+/*******************************************************************************
+ * ToDo List Widget - Android homescreen note taking application
+ * Copyright (C) 2011  Chris Bailey
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.chrisbailey.todo.utils;
+
+import java.util.List;
+import java.util.ListIterator;
+
+import org.chrisbailey.todo.R;
+
+import android.text.Html;
+import android.util.Log;
+import android.util.SparseArray;
+import android.view.View;
+import android.widget.ImageView;
+import android.widget.RemoteViews;
+import android.widget.TextView;
+
+/**
+ * Binds a list and its theme to the widget layout. The home screen widget
+ * draws through {@link RemoteViewsTarget} and the preferences preview through
+ * {@link ViewTarget} on an inflated copy of the same layout, so the preview
+ * always shows what the widget will.
+ */
+public class WidgetRenderer
+{
+    private static final String LOG_TAG = "WidgetRenderer";
+    
+    // number of note rows in the widget layout
+    public static final int MAX_ROWS = 20;
+    
+    private static final String NOTE_VIEW_PREFIX = "note_";
+    private static final String ICON_VIEW_PREFIX = "noteimage_";
+    
+    // row view ids, looked up once rather than by reflection on every render
+    private static int [] noteIds;
+    private static int [] iconIds;
+    
+    /**
+     * The view operations the renderer needs, so it can draw into either
+     * RemoteViews or a real view tree
+     */
+    public interface Target
+    {
+        void setVisibility(int viewId, int visibility);
+        void setText(int viewId, CharSequence text);
+        void setTextColor(int viewId, int color);
+        void setTextSize(int viewId, float size);
+        void setImageResource(int viewId, int resId);
+    }
+    
+    /**
+     * Called for each row that shows a note, e.g. to attach click handlers
+     */
+    public interface RowListener
+    {
+        void onRowBound(int iconId, Note n);
+    }
+    
+    public static class RemoteViewsTarget implements Target
+    {
+        private final RemoteViews views;
+        
+        public RemoteViewsTarget(RemoteViews views)
+        {
+            this.views = views;
+        }
+        
+        public void setVisibility(int viewId, int visibility) { views.setViewVisibility(viewId, visibility); }
+        public void setText(int viewId, CharSequence text) { views.setTextViewText(viewId, text); }
+        public void setTextColor(int viewId, int color) { views.setTextColor(viewId, color); }
+        public void setTextSize(int viewId, float size) { views.setFloat(viewId, "setTextSize", size); }
+        public void setImageResource(int viewId, int resId) { views.setImageViewResource(viewId, resId); }
+    }
+    
+    public static class ViewTarget implements Target
+    {
+        private final View root;
+        private final SparseArray<View> views = new SparseArray<View>();
+        
+        public ViewTarget(View root)
+        {
+            this.root = root;
+        }
+        
+        private View find(int viewId)
+        {
+            View v = views.get(viewId);
+            if (v == null)
+            {
+                v = root.findViewById(viewId);
+                views.put(viewId, v);
+            }
+            return v;
+        }
+        
+        public void setVisibility(int viewId, int visibility) { find(viewId).setVisibility(visibility); }
+        public void setText(int viewId, CharSequence text) { ((TextView) find(viewId)).setText(text); }
+        public void setTextColor(int viewId, int color) { ((TextView) find(viewId)).setTextColor(color); }
+        public void setTextSize(int viewId, float size) { ((TextView) find(viewId)).setTextSize(size); }
+        public void setImageResource(int viewId, int resId) { ((ImageView) find(viewId)).setImageResource(resId); }
+    }
+    
+    /**
+     * Draws the whole widget
+     * @param offset index of the note shown in the first row
+     * @param rows the number of rows that can be visible, see
+     *        {@link org.chrisbailey.todo.WidgetSizes.Size#rowCapacity}
+     * @param jumps whether the widget is wide enough for the page and jump
+     *        buttons
+     * @param listener told about each row showing a note, may be null
+     */
+    public static void render(Target t, PreferenceManager pm, String title, List<Note> notes, int offset, int rows, boolean jumps, RowListener listener)
+    {
+        renderBackground(t, pm);
+        renderTitle(t, pm, title);
+        renderScrollButtons(t, pm, offset, notes.size(), jumps);
+        renderRows(t, pm, notes, offset, rows, listener);
+    }
+    
+    public static void renderBackground(Target t, PreferenceManager pm)
+    {
+        t.setImageResource(R.id.widget_background, pm.getBackground());
+        
+        // set top padding
+        int padding = pm.getTopPadding();
+        t.setVisibility(R.id.padding1, padding >= 1 ? View.VISIBLE : View.GONE);
+        t.setVisibility(R.id.padding2, padding == 2 ? View.VISIBLE : View.GONE);
+    }
+    
+    public static void renderTitle(Target t, PreferenceManager pm, String title)
+    {
+        if (title.length() == 0)
+        {
+            t.setVisibility(R.id.notetitle, View.GONE);
+            return;
+        }
+        
+        t.setText(R.id.notetitle, Html.fromHtml("<b><u>"+title.trim()+"</u></b>"));
+        t.setVisibility(R.id.notetitle, View.VISIBLE);
+        t.setTextColor(R.id.notetitle, pm.getActiveColor());
+        t.setTextSize(R.id.notetitle, pm.getTitleSize());
+    }
+    
+    public static void renderScrollButtons(Target t, PreferenceManager pm, int offset, int count, boolean jumps)
+    {
+        boolean show = pm.getScrollButtons();
+        int visibility = show ? View.VISIBLE : View.GONE;
+        int jumpVisibility = show && jumps ? View.VISIBLE : View.GONE;
+        
+        t.setVisibility(R.id.widget_scroll_up, visibility);
+        t.setVisibility(R.id.widget_scroll_down, visibility);
+        t.setVisibility(R.id.widget_page_up, jumpVisibility);
+        t.setVisibility(R.id.widget_page_down, jumpVisibility);
+        t.setVisibility(R.id.widget_scroll_top, jumpVisibility);
+        t.setVisibility(R.id.widget_scroll_bottom, jumpVisibility);
+        if (!show) return;
+        
+        // only show the arrows that can be used
+        boolean up = offset > 0;
+        boolean down = count > 1 && offset < count-1;
+        t.setImageResource(R.id.widget_scroll_up, up ? R.drawable.action_scroll_up : R.drawable.background_99_0);
+        t.setImageResource(R.id.widget_scroll_down, down ? R.drawable.action_scroll_down : R.drawable.background_99_0);
+        if (!jumps) return;
+        
+        t.setImageResource(R.id.widget_page_up, up ? R.drawable.action_page_up : R.drawable.background_99_0);
+        t.setImageResource(R.id.widget_scroll_top, up ? R.drawable.action_scroll_top : R.drawable.background_99_0);
+        t.setImageResource(R.id.widget_page_down, down ? R.drawable.action_page_down : R.drawable.background_99_0);
+        t.setImageResource(R.id.widget_scroll_bottom, down ? R.drawable.action_scroll_bottom : R.drawable.background_99_0);
+    }
+    
+    /**
+     * Fills the first rows of the layout, starting from the note at offset.
+     * Rows past the end of the list are hidden, rows past the budget can't
+     * be seen at the widget's size and are left alone.
+     */
+    public static void renderRows(Target t, PreferenceManager pm, List<Note> notes, int offset, int rows, RowListener listener)
+    {
+        loadRowIds();
+        
+        float size = pm.getSize();
+        boolean emptyIcon = pm.isEmptyIcon();
+        
+        // notes may be a linked list, so walk it rather than index into it
+        ListIterator<Note> it = offset < notes.size() ? notes.listIterator(offset) : null;
+        
+        rows = Math.min(rows, MAX_ROWS);
+        for (int j = 0; j < rows; j++)
+        {
+            int noteId = noteIds[j];
+            int iconId = iconIds[j];
+            if (noteId == -1 || iconId == -1) continue;
+            
+            t.setTextSize(noteId, size);
+            
+            Note n = it != null && it.hasNext() ? it.next() : null;
+            if (n == null || n.text == null || n.text.equals(""))
+            {
+                t.setVisibility(noteId, View.INVISIBLE);
+                t.setVisibility(iconId, View.INVISIBLE);
+                continue;
+            }
+            
+            boolean finished = n.status == Note.Status.FINISHED;
+            t.setVisibility(noteId, View.VISIBLE);
+            t.setVisibility(iconId, emptyIcon ? View.GONE : View.VISIBLE);
+            t.setImageResource(iconId, finished ? pm.getFinishedIcon() : pm.getActiveIcon());
+            t.setText(noteId, n.text);
+            t.setTextColor(noteId, finished ? pm.getFinishedColor() : pm.getActiveColor());
+            
+            if (listener != null) listener.onRowBound(iconId, n);
+        }
+    }
+    
+    private static void loadRowIds()
+    {
+        if (noteIds != null) return;
+        
+        int [] notes = new int[MAX_ROWS];
+        int [] icons = new int[MAX_ROWS];
+        for (int i = 0; i < MAX_ROWS; i++)
+        {
+            notes[i] = getViewId(NOTE_VIEW_PREFIX, i+1);
+            icons[i] = getViewId(ICON_VIEW_PREFIX, i+1);
+        }
+        iconIds = icons;
+        noteIds = notes;
+    }
+    
+    private static int getViewId(String prefix, int row)
+    {
+        try
+        {
+            return R.id.class.getField(prefix+row).getInt(null);
+        }
+        catch (Exception e)
+        {
+            Log.e(LOG_TAG, "Error obtaining view id " + prefix + row, e);
+        }
+        return -1;
+    }
+}
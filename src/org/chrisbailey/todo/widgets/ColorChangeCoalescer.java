@@ -0,0 +1,72 @@
+/*******************************************************************************
+ * ToDo List Widget - Android homescreen note taking application
+ * Copyright (C) 2011  Chris Bailey
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.chrisbailey.todo.widgets;
+
+import android.view.View;
+
+/**
+ * Passes color changes from a view on to its listener at most once a
+ * frame. Touch moves can arrive faster than that, and only the latest
+ * color matters.
+ */
+class ColorChangeCoalescer implements Runnable {
+
+	// roughly one frame at 60fps
+	private static final int FRAME_MS = 16;
+	
+	private final View mView;
+	private ColorChangedListener mListener;
+	private int mColor;
+	private boolean mPending;
+	
+	ColorChangeCoalescer(View view) {
+		mView = view;
+	}
+	
+	void setListener(ColorChangedListener listener) {
+		mListener = listener;
+	}
+	
+	/**
+	 * Queues a change, replacing any not yet delivered
+	 */
+	void colorChanged(int color) {
+		mColor = color;
+		if (!mPending) {
+			mPending = true;
+			mView.postDelayed(this, FRAME_MS);
+		}
+	}
+	
+	/**
+	 * Delivers any queued change straight away
+	 */
+	void flush() {
+		if (mPending) {
+			mView.removeCallbacks(this);
+			run();
+		}
+	}
+	
+	public void run() {
+		mPending = false;
+		if (mListener != null) {
+			mListener.onColorChanged(mView, mColor);
+		}
+	}
+}
@@ -20,7 +20,6 @@ import android.content.Context;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
-import android.graphics.PointF;
 import android.graphics.Shader;
 import android.graphics.SweepGradient;
 import android.util.AttributeSet;
@@ -42,6 +41,11 @@ public class ColorCircle extends View {
     private Paint mCenterPaint;
     private int[] mColors;
     private ColorChangedListener mListener;
+    private ColorChangeCoalescer mNotifier;
+    
+    // the color at each step around the ring, so touches need no color math
+    private static final int HUE_STEPS = 360;
+    private int[] mHues;
 
 
 	/**
@@ -87,6 +91,13 @@ public class ColorCircle extends View {
         
         mCenterPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
         mCenterPaint.setStrokeWidth(5);
+        
+        mHues = new int[HUE_STEPS + 1];
+        for (int i = 0; i <= HUE_STEPS; i++) {
+        	mHues[i] = interpColor(mColors, (float) i / HUE_STEPS);
+        }
+        
+        mNotifier = new ColorChangeCoalescer(this);
 	}
     
     private boolean mTrackingCenter;
@@ -155,6 +166,7 @@ public class ColorCircle extends View {
 	public void setOnColorChangedListener(
 			ColorChangedListener colorListener) {
 		mListener = colorListener;
+		mNotifier.setListener(colorListener);
 	}
     
     private int ave(int s, int d, float p) {
@@ -184,11 +196,33 @@ public class ColorCircle extends View {
         return Color.argb(a, r, g, b);
     }
     
+    /**
+     * Approximates the angle of a point to within about 0.12 degrees, finer
+     * than a step of the hue table and much cheaper than atan2
+     * @return the angle as a fraction of a turn [0...1)
+     */
+    private static float angleUnit(float x, float y) {
+    	float ax = Math.abs(x);
+    	float ay = Math.abs(y);
+    	if (ax == 0 && ay == 0) return 0;
+    	
+    	// angle of the point folded into the first octant, in turns
+    	float t = Math.min(ax, ay) / Math.max(ax, ay);
+    	float t2 = t * t;
+    	float a = t * (0.1591549f - t2 * (0.0470398f - t2 * 0.0129018f));
+    	
+    	// unfold it
+    	if (ay > ax) a = 0.25f - a;
+    	if (x < 0) a = 0.5f - a;
+    	if (y < 0) a = 1 - a;
+    	return a;
+    }
+    
     @Override
     public boolean onTouchEvent(MotionEvent event) {
         float x = event.getX() - getWidth()/2;
         float y = event.getY() - getHeight()/2;
-        boolean inCenter = PointF.length(x, y) <= center_radius;
+        boolean inCenter = x * x + y * y <= center_radius * center_radius;
         
         switch (event.getAction()) {
             case MotionEvent.ACTION_DOWN:
@@ -205,22 +239,14 @@ public class ColorCircle extends View {
                         invalidate();
                     }
                 } else {
-                    float angle = (float)java.lang.Math.atan2(y, x);
-                    // need to turn angle [-PI ... PI] into unit [0....1]
-                    float unit = angle/(2*(float) Math.PI);
-                    if (unit < 0) {
-                        unit += 1;
-                    }
-                    int newcolor = interpColor(mColors, unit);
+                    int newcolor = mHues[Math.round(angleUnit(x, y) * HUE_STEPS)];
                     mCenterPaint.setColor(newcolor);
-
-                	if (mListener != null) {
-                		mListener.onColorChanged(this, newcolor);
-                	}
+                    mNotifier.colorChanged(newcolor);
                     invalidate();
                 }
                 break;
             case MotionEvent.ACTION_UP:
+                mNotifier.flush();
                 if (mTrackingCenter) {
                     if (inCenter) {
                     	if (mListener != null) {
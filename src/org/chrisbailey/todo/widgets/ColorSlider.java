@@ -43,7 +43,10 @@ public class ColorSlider extends View {
     private Paint mPaint;
     private int mColor1;
     private int mColor2;
-    private ColorChangedListener mListener;
+    private ColorChangeCoalescer mNotifier;
+    
+    // rebuilt only when the size or colors change
+    private Shader mShader;
 
 	/**
 	 * Constructor. This version is only needed for instantiating the object
@@ -81,16 +84,26 @@ public class ColorSlider extends View {
 
         mPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
         mPaint.setStyle(Paint.Style.FILL);
+        
+        mNotifier = new ColorChangeCoalescer(this);
 	}
 
     @Override 
     protected void onDraw(Canvas canvas) {
-		Shader s = new LinearGradient(0, 0, 0, getHeight(), mColor1, mColor2, Shader.TileMode.CLAMP);
-        mPaint.setShader(s);
+    	if (mShader == null) {
+    		mShader = new LinearGradient(0, 0, 0, getHeight(), mColor1, mColor2, Shader.TileMode.CLAMP);
+    		mPaint.setShader(mShader);
+    	}
     	
     	canvas.drawRect(0, 0, getWidth(), getHeight(), mPaint);
     }
     
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+    	super.onSizeChanged(w, h, oldw, oldh);
+    	mShader = null;
+    }
+    
 
 	/**
 	 * @see android.view.View#measure(int, int)
@@ -156,6 +169,9 @@ public class ColorSlider extends View {
 	}
     
 	public void setColors(int color1, int color2) {
+		if (color1 == mColor1 && color2 == mColor2) return;
+		
+		mShader = null;
 		mColor1 = color1;
 		mColor2 = color2;
         
@@ -164,7 +180,7 @@ public class ColorSlider extends View {
 
 	public void setOnColorChangedListener(
 			ColorChangedListener colorListener) {
-		mListener = colorListener;
+		mNotifier.setListener(colorListener);
 	}
     
     private int ave(int s, int d, float p) {
@@ -204,13 +220,10 @@ public class ColorSlider extends View {
             	
                 int newcolor = interpColor(mColor1, mColor2, unit);
 
-            	if (mListener != null) {
-            		mListener.onColorChanged(this, newcolor);
-            	}
-                invalidate();
+                mNotifier.colorChanged(newcolor);
                 break;
             case MotionEvent.ACTION_UP:
-                
+                mNotifier.flush();
                 break;
         }
         return true;
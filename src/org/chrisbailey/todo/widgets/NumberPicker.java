@@ -50,6 +50,20 @@ public class NumberPicker extends LinearLayout {
         void onNumberChanged(NumberPicker picker, int oldVal, int newVal);
     }
 
+    /**
+     * The callback interface used to indicate the number has stopped changing:
+     * after a click, after typed input, or when a long press is released.
+     * Unlike {@link OnNumberChangedListener} it isn't called for each step of
+     * a long press, so it suits listeners that do expensive work.
+     */
+    public interface OnNumberSettledListener {
+        /**
+         * @param picker The NumberPicker associated with this listener.
+         * @param value The new value.
+         */
+        void onNumberSettled(NumberPicker picker, int value);
+    }
+
     /**
      * Interface used to format the number into a string for presentation
      */
@@ -79,13 +93,18 @@ public class NumberPicker extends LinearLayout {
     private final Handler mHandler;
     private final Runnable mRunnable = new Runnable() {
         public void run() {
-            if (mIncrement) {
-                changeCurrent(mCurrent + 1);
-                mHandler.postDelayed(this, mSpeed);
-            } else if (mDecrement) {
-                changeCurrent(mCurrent - 1);
-                mHandler.postDelayed(this, mSpeed);
-            }
+            if (!mIncrement && !mDecrement) return;
+
+            int previous = mCurrent;
+            changeCurrent(mIncrement ? mCurrent + 1 : mCurrent - 1);
+
+            // stop repeating at the end of the range, the value is settled
+            // when the button is released
+            if (mCurrent == previous) return;
+
+            // each step comes sooner than the last, down to mMinSpeed
+            mRepeatDelay = Math.max(mMinSpeed, (long) (mRepeatDelay * mAcceleration));
+            mHandler.postDelayed(this, mRepeatDelay);
         }
     };
 
@@ -114,8 +133,21 @@ public class NumberPicker extends LinearLayout {
      */
     private int mPrevious;
     private OnNumberChangedListener mListener;
+    private OnNumberSettledListener mSettledListener;
+
+    /**
+     * Value last reported to the settled listener
+     */
+    private int mSettled;
     private Formatter mFormatter;
     private long mSpeed = 300;
+    private long mMinSpeed = 50;
+    private float mAcceleration = 0.8f;
+
+    /**
+     * Delay before the next step of the current long press
+     */
+    private long mRepeatDelay;
 
     private boolean mIncrement;
     private boolean mDecrement;
@@ -152,6 +184,7 @@ public class NumberPicker extends LinearLayout {
                 } else if (R.id.decrement == v.getId()) {
                     changeCurrent(mCurrent - 1);
                 }
+                notifySettled();
             }
         };
 
@@ -178,6 +211,7 @@ public class NumberPicker extends LinearLayout {
                  */
                 mText.clearFocus();
 
+                mRepeatDelay = mSpeed;
                 if (R.id.increment == v.getId()) {
                     mIncrement = true;
                     mHandler.post(mRunnable);
@@ -233,6 +267,14 @@ public class NumberPicker extends LinearLayout {
         mListener = listener;
     }
 
+    /**
+     * Set the callback that indicates the user has finished adjusting the number.
+     * @param listener the callback, may be null.
+     */
+    public void setOnSettledListener(OnNumberSettledListener listener) {
+        mSettledListener = listener;
+    }
+
     /**
      * Set the formatter that will be used to format the number for presentation
      * @param formatter the formatter object.  If formatter is null, String.valueOf()
@@ -267,6 +309,7 @@ public class NumberPicker extends LinearLayout {
         mStart = start;
         mEnd = end;
         mCurrent = start;
+        mSettled = start;
         updateView();
     }
 
@@ -282,6 +325,7 @@ public class NumberPicker extends LinearLayout {
             throw new IllegalArgumentException("current should be >= start and <= end");
         }
         mCurrent = current;
+        mSettled = current;
         updateView();
     }
 
@@ -296,6 +340,19 @@ public class NumberPicker extends LinearLayout {
         mSpeed = speed;
     }
 
+    /**
+     * Sets how a long press speeds up. Each step's delay is the previous
+     * one multiplied by factor, until it reaches minSpeed.
+     *
+     * @param factor between 0 and 1, default 0.8, 1 for a constant speed
+     * @param minSpeed the shortest delay (in milliseconds) between steps,
+     * default 50ms
+     */
+    public void setAcceleration(float factor, long minSpeed) {
+        mAcceleration = factor;
+        mMinSpeed = minSpeed;
+    }
+
     private String formatNumber(int value) {
         return (mFormatter != null)
                 ? mFormatter.toString(value)
@@ -328,6 +385,18 @@ public class NumberPicker extends LinearLayout {
         updateView();
     }
 
+    /**
+     * Notifies the settled listener, if registered, if the value has changed
+     * since it was last told.
+     */
+    private void notifySettled() {
+        if (mSettled == mCurrent) return;
+        mSettled = mCurrent;
+        if (mSettledListener != null) {
+            mSettledListener.onNumberSettled(this, mCurrent);
+        }
+    }
+
     /**
      * Notifies the listener, if registered, of a change of the value of this
      * NumberPicker.
@@ -363,6 +432,7 @@ public class NumberPicker extends LinearLayout {
                 mPrevious = mCurrent;
                 mCurrent = val;
                 notifyChange();
+                notifySettled();
             }
         }
         updateView();
@@ -385,14 +455,20 @@ public class NumberPicker extends LinearLayout {
      * @hide
      */
     public void cancelIncrement() {
+        if (!mIncrement) return;
         mIncrement = false;
+        mHandler.removeCallbacks(mRunnable);
+        notifySettled();
     }
 
     /**
      * @hide
      */
     public void cancelDecrement() {
+        if (!mDecrement) return;
         mDecrement = false;
+        mHandler.removeCallbacks(mRunnable);
+        notifySettled();
     }
 
     private static final char[] DIGIT_CHARACTERS = new char[] {